@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.haulmont.yarg.exception;
+
+/**
+ * Thrown when report run is cancelled or exceeds its time limit
+ *
+ * @see com.haulmont.yarg.reporting.RunHandle
+ */
+public class ReportCancelledException extends ReportingException {
+    private static final long serialVersionUID = 8273362469578768794L;
+
+    public ReportCancelledException() {
+    }
+
+    public ReportCancelledException(String message) {
+        super(message);
+    }
+
+    public ReportCancelledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ReportCancelledException(Throwable cause) {
+        super(cause);
+    }
+}
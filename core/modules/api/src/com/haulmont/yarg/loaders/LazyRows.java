@@ -0,0 +1,25 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders;
+
+/**
+ * Marks result of the loader which loads rows on demand, while they are iterated, instead of keeping them in memory.
+ * Each iteration may load rows from the data source again, so the result which is kept to be iterated
+ * several times should be copied to a regular list.
+ */
+public interface LazyRows {
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders;
+
+import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.ReportQuery;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface describes a loader which is able to load rows for several sibling parent bands with a single query.
+ * Rows are returned as one flat list, data extractor splits them back to the parent bands using link fields.
+ * See com.haulmont.yarg.reporting.DataExtractorImpl#BATCH_LINK_PARAM.
+ */
+public interface ReportBatchDataLoader extends ReportDataLoader {
+    /**
+     * This method MUST return list of mutable maps. All parent bands have the same parent band.
+     */
+    List<Map<String, Object>> loadBatchData(ReportQuery reportQuery, List<BandData> parentBands, Map<String, Object> params);
+}
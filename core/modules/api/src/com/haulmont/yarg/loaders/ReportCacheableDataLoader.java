@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders;
+
+import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.ReportQuery;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface describes a loader which is able to identify the data it loads, so the result can be reused.
+ */
+public interface ReportCacheableDataLoader extends ReportDataLoader {
+    /**
+     * Returns key of the data loaded with the given query, parent band and params, for example resolved query text and bound parameter values.
+     * Equal keys MUST mean equal results. Null means that result should not be cached.
+     */
+    Object createCacheKey(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params);
+
+    /**
+     * Loads data for which the key has been created by {@link #createCacheKey}, when the result is not found by the key.
+     * Loaders which prepare the query to create the key can load data with the prepared query instead of preparing it again.
+     */
+    default List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params, Object cacheKey) {
+        return loadData(reportQuery, parentBand, params);
+    }
+}
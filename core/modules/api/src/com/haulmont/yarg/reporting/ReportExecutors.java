@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.haulmont.yarg.reporting;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors of asynchronous report runs which are used if no executors are configured.
+ * Pools have fixed count of daemon threads, which are stopped when idle, so report runs do not take threads
+ * of the common fork join pool used by the application, and do not prevent JVM exit.
+ */
+public final class ReportExecutors {
+    public static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private ReportExecutors() {
+    }
+
+    /**
+     * @return shared executor of the default asynchronous runs of {@link ReportingAPI}, sized by count of processors
+     */
+    public static ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (ReportExecutors.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = newFixedPool("yarg-report", Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Creates pool with the fixed count of daemon threads named by the given prefix
+     */
+    public static ExecutorService newFixedPool(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            protected final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -18,6 +18,7 @@ package com.haulmont.yarg.reporting;
 
 
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class is entry point for reporting functionality
@@ -41,4 +42,35 @@ public interface ReportingAPI {
      * @return ReportOutputDocument - object which describes generated report - its name, type etc
      */
     ReportOutputDocument runReport(RunParams runParams);
+
+    /**
+     * This method generates report asynchronously and put result to output stream.
+     * Default implementation runs the whole report in the shared pool of {@link ReportExecutors#getDefaultExecutor()}.
+     * The run is cancelled when the returned future is cancelled, run handle is set to the params if they have none.
+     *
+     * @param runParams - parameters for report printing
+     * @param outputStream - the stream which accept binary file generated by reporting
+     * @return future of the object which describes generated report
+     */
+    default CompletableFuture<ReportOutputDocument> runReportAsync(RunParams runParams, OutputStream outputStream) {
+        RunHandle handle = runParams.handle != null ? runParams.handle : new RunHandle();
+        runParams.handle(handle);
+        return handle.cancelWith(CompletableFuture.supplyAsync(() -> runReport(runParams, outputStream),
+                ReportExecutors.getDefaultExecutor()));
+    }
+
+    /**
+     * This method generates report asynchronously and put result to ReportOutputDocument.content field.
+     * Default implementation runs the whole report in the shared pool of {@link ReportExecutors#getDefaultExecutor()}.
+     * The run is cancelled when the returned future is cancelled, run handle is set to the params if they have none.
+     *
+     * @param runParams - parameters for report printing
+     * @return future of the object which describes generated report
+     */
+    default CompletableFuture<ReportOutputDocument> runReportAsync(RunParams runParams) {
+        RunHandle handle = runParams.handle != null ? runParams.handle : new RunHandle();
+        runParams.handle(handle);
+        return handle.cancelWith(CompletableFuture.supplyAsync(() -> runReport(runParams),
+                ReportExecutors.getDefaultExecutor()));
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.haulmont.yarg.reporting;
+
+import com.haulmont.yarg.exception.ReportCancelledException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Handle of the report run, which allows to cancel the run or to limit its time.
+ * Loaders and formatters check it between rows and throw {@link ReportCancelledException} if the run is cancelled
+ * or the deadline is passed. Running queries are cancelled by listeners, registered by loaders.
+ *
+ * The handle of the current run is bound to the thread which loads data, see {@link #current()}.
+ */
+public class RunHandle {
+    protected static final ThreadLocal<RunHandle> CURRENT = new ThreadLocal<RunHandle>();
+
+    protected volatile boolean cancelled;
+    protected volatile long deadline;
+    protected final List<Runnable> cancelListeners = new CopyOnWriteArrayList<Runnable>();
+    protected final List<Closeable> resources = new CopyOnWriteArrayList<Closeable>();
+
+    public RunHandle() {
+    }
+
+    /**
+     * @param timeout time of the run in milliseconds, starting from now
+     */
+    public RunHandle(long timeout) {
+        setTimeout(timeout);
+    }
+
+    /**
+     * @return handle of the report run, which loads data in the current thread, or null
+     */
+    public static RunHandle current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the handle to the current thread.
+     * @return previously bound handle, which should be restored with this method when the work is done
+     */
+    public static RunHandle bind(RunHandle handle) {
+        RunHandle previous = CURRENT.get();
+        if (handle != null) {
+            CURRENT.set(handle);
+        } else {
+            CURRENT.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Cancels the run and notifies cancel listeners. The run stops at the nearest check.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Runnable listener : cancelListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return true if the run is cancelled or the deadline is passed
+     */
+    public boolean isCancelled() {
+        return cancelled || (deadline > 0 && System.currentTimeMillis() >= deadline);
+    }
+
+    /**
+     * @throws ReportCancelledException if the run is cancelled or the deadline is passed
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new ReportCancelledException("Report run has been cancelled");
+        }
+        if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            throw new ReportCancelledException("Report run has exceeded its time limit");
+        }
+    }
+
+    /**
+     * @param deadline time in milliseconds (as System.currentTimeMillis()) when the run should stop, 0 means no deadline
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @param timeout time of the run in milliseconds, starting from now
+     */
+    public void setTimeout(long timeout) {
+        this.deadline = System.currentTimeMillis() + timeout;
+    }
+
+    /**
+     * @return milliseconds left until the deadline, or -1 if there is no deadline
+     */
+    public long getRemainingTime() {
+        return deadline > 0 ? Math.max(deadline - System.currentTimeMillis(), 0) : -1;
+    }
+
+    /**
+     * Registers listener which is called when the run is cancelled, e.g. to cancel running statement.
+     * If the run is already cancelled, listener is called immediately.
+     */
+    public void addCancelListener(Runnable listener) {
+        cancelListeners.add(listener);
+        if (cancelled) {
+            listener.run();
+        }
+    }
+
+    public void removeCancelListener(Runnable listener) {
+        cancelListeners.remove(listener);
+    }
+
+    /**
+     * Cancels the run when the future of its result is cancelled, because cancellation of the future
+     * does not stop the tasks it depends on.
+     * @return the same future
+     */
+    public <T> CompletableFuture<T> cancelWith(CompletableFuture<T> future) {
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) {
+                cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Registers resource of the run which is not bound to a band (e.g. connection shared by the queries of the run).
+     * Resources are closed when resources of the root band are released.
+     */
+    public void addResource(Closeable resource) {
+        resources.add(resource);
+    }
+
+    /**
+     * Removes resource which has been closed by its owner before the resources are released
+     */
+    public void removeResource(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    public void releaseResources() {
+        for (Closeable resource : resources) {
+            if (resources.remove(resource)) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    //other resources should be closed anyway
+                }
+            }
+        }
+    }
+}
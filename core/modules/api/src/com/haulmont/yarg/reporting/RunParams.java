@@ -30,6 +30,8 @@ public class RunParams {
     protected ReportTemplate reportTemplate;
     protected ReportOutputType outputType;
     protected Map<String, Object> params = new HashMap<String, Object>();
+    protected RunHandle handle;
+    protected long timeout;
 
     public RunParams(Report report) {
         this.report = report;
@@ -88,4 +90,20 @@ public class RunParams {
         this.outputType = outputType;
         return this;
     }
+
+    /**
+     * Setup handle which can be used to cancel the run
+     */
+    public RunParams handle(RunHandle handle) {
+        this.handle = handle;
+        return this;
+    }
+
+    /**
+     * Limit time of the run, in milliseconds from the start of the run
+     */
+    public RunParams timeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
 }
\ No newline at end of file
@@ -16,6 +16,10 @@
 
 package com.haulmont.yarg.structure;
 
+import com.haulmont.yarg.reporting.RunHandle;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 
@@ -32,6 +36,8 @@ public class BandData implements Serializable {
     protected BandData parentBand;
 
     protected Map<String, List<BandData>> childrenBands = new LinkedHashMap<String, List<BandData>>();
+    protected transient volatile ChildrenCursors childrenCursors;
+    protected transient ChildrenBandsView childrenBandsView;
 
     protected final String name;
     protected final BandOrientation orientation;
@@ -39,6 +45,17 @@ public class BandData implements Serializable {
     protected int level;
     protected Map<String, ReportFieldFormat> reportFieldFormats = new HashMap<String, ReportFieldFormat>();
 
+    //changed in the root band under its lock when the tree is changed other than by adding bands,
+    //used to check that the indexes are up to date. Added bands are merged into the built indexes.
+    protected transient volatile int structureModCount;
+    protected transient BandIndex index;
+    //kept in the root band
+    protected transient Map<String, BandRowSchema> rowSchemas;
+    //resources of the report run, kept by root band
+    protected transient List<Closeable> resources;
+    protected transient RunHandle runHandle;
+    //band is created with the parent band, but is not added to its children yet
+    protected transient boolean detached;
 
     public BandData(String name) {
         this(name, null, BandOrientation.HORIZONTAL);
@@ -52,6 +69,7 @@ public class BandData implements Serializable {
         this.name = name;
         this.parentBand = parentBand;
         this.orientation = orientation;
+        this.detached = parentBand != null;
 
         BandData currentBand = this;
         while (currentBand != null) {
@@ -60,8 +78,23 @@ public class BandData implements Serializable {
         }
     }
 
+    /**
+     * @return children bands by name. Changes of the map drop indexes of the tree,
+     * children should be added with {@link #addChild(BandData)} rather than to the lists of the map.
+     */
     public Map<String, List<BandData>> getChildrenBands() {
-        return childrenBands;
+        fetchChildrenCursors();
+        if (childrenBandsView == null) {
+            childrenBandsView = new ChildrenBandsView(this);
+        }
+        return childrenBandsView;
+    }
+
+    /**
+     * @return names of children bands in order of adding. Lazily loaded children are not loaded by this method.
+     */
+    public Set<String> getChildrenBandNames() {
+        return Collections.unmodifiableSet(childrenBands.keySet());
     }
 
     public Map<String, Object> getData() {
@@ -98,7 +131,9 @@ public class BandData implements Serializable {
     }
 
     public void setParentBand(BandData parentBand) {
+        structureChanged();
         this.parentBand = parentBand;
+        structureChanged();
     }
 
     public BandOrientation getOrientation() {
@@ -120,6 +155,7 @@ public class BandData implements Serializable {
     }
 
     public List<BandData> getChildrenList() {
+        fetchChildrenCursors();
         List<BandData> bandList = new ArrayList<BandData>();
         for (List<BandData> bands : childrenBands.values()) {
             bandList.addAll(bands);
@@ -133,6 +169,8 @@ public class BandData implements Serializable {
             throw new NullPointerException("Parameter bandName can not be null.");
         }
 
+        //other lazily loaded children are not loaded, so formatter can render the bands while the next ones are loading
+        fetchChildrenCursor(bandName);
         List<BandData> children = childrenBands.get(bandName);
         return children != null ? children : new ArrayList<BandData>();
     }
@@ -147,37 +185,268 @@ public class BandData implements Serializable {
     }
 
     public void addChild(BandData band) {
-        if (!childrenBands.containsKey(band.getName())) {
-            childrenBands.put(band.getName(), new ArrayList<BandData>());
+        fetchChildrenCursors();
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            List<BandData> bands = childrenBands.get(band.getName());
+            if (bands == null) {
+                bands = new ArrayList<BandData>();
+                childrenBands.put(band.getName(), bands);
+            }
+            bands.add(band);
+            bandAdded(band);
         }
-        List<BandData> bands = childrenBands.get(band.getName());
-        bands.add(band);
     }
 
+    /**
+     * Adds bands to children. Disk based list (see {@link SpillingBandList}) is kept as is if there are no children
+     * with the same name yet, so its bands are not loaded to heap.
+     */
     public void addChildren(List<BandData> bands) {
+        if (bands instanceof SpillingBandList) {
+            fetchChildrenCursors();
+            String bandName = ((SpillingBandList) bands).getName();
+            BandData rootBand = getRootBand();
+            synchronized (rootBand) {
+                if (!childrenBands.containsKey(bandName)) {
+                    childrenBands.put(bandName, bands);
+                    //bands are not read from the file to merge them into the indexes
+                    rootBand.structureModCount++;
+                    return;
+                }
+            }
+        }
+
         for (BandData band : bands)
             addChild(band);
     }
 
+    /**
+     * @return handle of the report run which the band belongs to, it is kept by root band
+     */
+    public RunHandle getRunHandle() {
+        return getRootBand().runHandle;
+    }
+
+    public void setRunHandle(RunHandle runHandle) {
+        getRootBand().runHandle = runHandle;
+    }
+
+    /**
+     * Registers resource of the report run (e.g. database connection) which is closed by {@link #releaseResources()}
+     * of the root band.
+     */
+    public void addResource(Closeable resource) {
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            if (rootBand.resources == null) {
+                rootBand.resources = new ArrayList<Closeable>();
+            }
+            rootBand.resources.add(resource);
+        }
+    }
+
+    /**
+     * Removes resource which has been closed by its owner before the resources are released
+     */
+    public void removeResource(Closeable resource) {
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            if (rootBand.resources != null) {
+                rootBand.resources.remove(resource);
+            }
+        }
+    }
+
+    /**
+     * Closes disk based lists of children bands and not loaded children cursors in this band and its children,
+     * and resources registered in this band (and in the run handle for the root band).
+     * Bands from closed lists are not available after that.
+     */
+    public void releaseResources() {
+        ChildrenCursors cursors = childrenCursors;
+        if (cursors != null) {
+            cursors.closeAll();
+        }
+
+        for (List<BandData> bands : childrenBands.values()) {
+            if (bands instanceof SpillingBandList) {
+                ((SpillingBandList) bands).close();
+            } else {
+                for (BandData band : bands) {
+                    band.releaseResources();
+                }
+            }
+        }
+
+        List<Closeable> resourcesToClose;
+        synchronized (this) {
+            resourcesToClose = resources;
+            resources = null;
+        }
+        if (resourcesToClose != null) {
+            for (Closeable resource : resourcesToClose) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    //other resources should be closed anyway
+                }
+            }
+        }
+        if (parentBand == null && runHandle != null) {
+            runHandle.releaseResources();
+        }
+    }
+
+    /**
+     * Registers lazily loaded children bands with the given name.
+     * Bands are loaded from the cursor on the first access to the children collections of this band,
+     * or they can be iterated without keeping them in the tree using {@link #getChildrenCursor(String)}.
+     */
+    public void addChildrenCursor(String bandName, BandDataCursor cursor) {
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            if (!childrenBands.containsKey(bandName)) {
+                childrenBands.put(bandName, new ArrayList<BandData>());
+            }
+            if (childrenCursors == null) {
+                childrenCursors = new ChildrenCursors(this);
+            }
+            childrenCursors.put(bandName, cursor);
+            //indexes are built with all children loaded
+            rootBand.structureModCount++;
+        }
+    }
+
+    /**
+     * @return cursor over children bands with the given name.
+     * If the bands are lazily loaded they are not kept in this band after iteration.
+     */
+    public BandDataCursor getChildrenCursor(String bandName) {
+        if (bandName == null) {
+            throw new NullPointerException("Parameter bandName can not be null.");
+        }
+
+        ChildrenCursors cursors = childrenCursors;
+        BandDataCursor cursor = cursors != null ? cursors.take(bandName) : null;
+        if (cursor != null) {
+            return cursor;
+        }
+
+        List<BandData> children = childrenBands.get(bandName);
+        final Iterator<BandData> iterator = children != null ? children.iterator() : Collections.<BandData>emptyIterator();
+        return new BandDataCursor() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public BandData next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    protected void fetchChildrenCursors() {
+        ChildrenCursors cursors = childrenCursors;
+        if (cursors != null) {
+            cursors.fetchAll();
+        }
+    }
+
+    protected void fetchChildrenCursor(String bandName) {
+        ChildrenCursors cursors = childrenCursors;
+        if (cursors != null) {
+            cursors.fetch(bandName);
+        }
+    }
+
     public boolean visit(BandVisitor bandVisitor) {
         if (bandVisitor.visit(this)) {
             return true;
         }
 
-        for (BandData child : getChildrenList()) {
-            if (child.visit(bandVisitor)) {
-                return true;
+        fetchChildrenCursors();
+        for (List<BandData> bands : childrenBands.values()) {
+            for (BandData child : bands) {
+                if (child.visit(bandVisitor)) {
+                    return true;
+                }
             }
         }
 
         return false;
     }
 
+    /**
+     * @return first band with the given name in depth-first order, including this band.
+     * Bands are looked up in the index which is built on the first search. Added bands are merged into the index,
+     * it is rebuilt after other changes of the tree.
+     */
     public BandData findBandRecursively(String name) {
-        BandNameVisitor visitor = new BandNameVisitor(name);
-        visit(visitor);
+        if (name == null) {
+            throw new NullPointerException("Could not find band with name = null");
+        }
+
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            checkIndexes();
+            if (index != null) {
+                return index.findBand(name);
+            }
+        }
+
+        //cursors might wait for the bands loaded by other threads, so they are fetched without the lock
+        fetchChildrenCursorsRecursively(this);
+        synchronized (rootBand) {
+            checkIndexes();
+            if (index == null) {
+                index = new BandIndex(this);
+            }
+            return index.findBand(name);
+        }
+    }
+
+    /**
+     * @return band found by the path like "Band1.Band11". Each part of the path is searched recursively
+     * in the band found by the previous part. Found bands are cached until the tree is changed.
+     */
+    public BandData findBandByPath(String path) {
+        if (path == null) {
+            throw new NullPointerException("Could not find band with path = null");
+        }
 
-        return visitor.foundBand;
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            checkIndexes();
+            if (index != null && index.containsPath(path)) {
+                return index.findBandByPath(path);
+            }
+        }
+
+        BandData currentBand = this;
+        for (String pathPart : path.split("\\.")) {
+            if (currentBand == null) break;
+            currentBand = currentBand.findBandRecursively(pathPart);
+        }
+
+        synchronized (rootBand) {
+            checkIndexes();
+            if (index != null) {
+                index.addPath(path, currentBand);
+            }
+        }
+        return currentBand;
     }
 
     public List<BandData> findBandsRecursively(String name) {
@@ -192,6 +461,94 @@ public class BandData implements Serializable {
         return allBands;
     }
 
+    /**
+     * @return schema shared by compact rows of the bands with the given name in this tree
+     */
+    public BandRowSchema getRowSchema(String bandName) {
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            if (rootBand.rowSchemas == null) {
+                rootBand.rowSchemas = new HashMap<String, BandRowSchema>();
+            }
+
+            BandRowSchema schema = rootBand.rowSchemas.get(bandName);
+            if (schema == null) {
+                schema = new BandRowSchema();
+                rootBand.rowSchemas.put(bandName, schema);
+            }
+            return schema;
+        }
+    }
+
+    /**
+     * Drops the index if the tree is changed after it was built. Called under the lock of the root band.
+     */
+    protected void checkIndexes() {
+        if (index != null && !index.isValid(getRootBand())) {
+            index = null;
+        }
+    }
+
+    protected void fetchChildrenCursorsRecursively(BandData band) {
+        band.fetchChildrenCursors();
+        for (List<BandData> bands : band.childrenBands.values()) {
+            if (!(bands instanceof SpillingBandList)) {
+                for (BandData child : bands) {
+                    fetchChildrenCursorsRecursively(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the band, which is added to the children of this band, into the built indexes of this band
+     * and the bands above. Called under the lock of the root band.
+     */
+    protected void bandAdded(BandData band) {
+        band.detached = false;
+        //position of the band which belongs to another parent can not be found in the tree
+        if (band.parentBand != this) {
+            getRootBand().structureModCount++;
+            return;
+        }
+
+        BandData currentBand = this;
+        while (currentBand != null) {
+            if (!currentBand.mergeIntoIndex(band)) {
+                getRootBand().structureModCount++;
+                return;
+            }
+            //bands above do not contain detached band
+            if (currentBand.detached) {
+                return;
+            }
+            currentBand = currentBand.parentBand;
+        }
+    }
+
+    /**
+     * @return false if the band can not be merged and indexes should be rebuilt
+     */
+    protected boolean mergeIntoIndex(BandData band) {
+        checkIndexes();
+        return index == null || index.merge(band);
+    }
+
+    protected void structureChanged() {
+        BandData rootBand = getRootBand();
+        synchronized (rootBand) {
+            rootBand.structureModCount++;
+        }
+    }
+
+    public BandData getRootBand() {
+        BandData rootBand = this;
+        while (rootBand.parentBand != null) {
+            rootBand = rootBand.parentBand;
+        }
+        return rootBand;
+    }
+
     public Set<String> getFirstLevelBandDefinitionNames() {
         return firstLevelBandDefinitionNames;
     }
@@ -214,10 +571,13 @@ public class BandData implements Serializable {
     public String toString() {
         StringBuilder sbf = new StringBuilder();
         sbf.append(name).append(":").append(data.toString()).append("\n");
-        for (BandData band : getChildrenList()) {
-            for (int i = 0; i < level; i++)
-                sbf.append("\t");
-            sbf.append(band.toString());
+        fetchChildrenCursors();
+        for (List<BandData> bands : childrenBands.values()) {
+            for (BandData band : bands) {
+                for (int i = 0; i < level; i++)
+                    sbf.append("\t");
+                sbf.append(band.toString());
+            }
         }
         return sbf.toString();
     }
@@ -244,4 +604,3 @@ public class BandData implements Serializable {
         }
     }
 }
-
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Pull based access to the bands with the same name. Each band is returned with its children loaded.
+ * Bands returned by the cursor are not kept in the parent band, so they can be released after rendering.
+ */
+public interface BandDataCursor extends Iterator<BandData>, Closeable {
+    /**
+     * Releases resources held by the cursor. Cursor is closed automatically when all bands are iterated.
+     */
+    @Override
+    void close();
+}
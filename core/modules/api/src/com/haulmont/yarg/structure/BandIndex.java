@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the bands of the band subtree by name and by path, used by {@link BandData#findBandRecursively(String)}
+ * and {@link BandData#findBandByPath(String)}. The index is valid while the structure of the tree is not changed
+ * other than by adding bands, which are merged into it. It is accessed under the lock of the root band.
+ */
+class BandIndex {
+    protected final BandData rootBand;
+    protected final int modCount;
+    protected final Map<String, BandData> bandsByName = new HashMap<String, BandData>();
+    protected Map<String, BandData> bandsByPath;
+
+    /**
+     * Builds index of the band subtree, children cursors of the subtree should be fetched before.
+     */
+    BandIndex(BandData band) {
+        this.rootBand = band.getRootBand();
+        this.modCount = rootBand.structureModCount;
+        indexBands(band);
+    }
+
+    boolean isValid(BandData rootBand) {
+        return rootBand == this.rootBand && rootBand.structureModCount == modCount;
+    }
+
+    BandData findBand(String name) {
+        return bandsByName.get(name);
+    }
+
+    boolean containsPath(String path) {
+        return bandsByPath != null && bandsByPath.containsKey(path);
+    }
+
+    BandData findBandByPath(String path) {
+        return bandsByPath != null ? bandsByPath.get(path) : null;
+    }
+
+    void addPath(String path, BandData band) {
+        if (bandsByPath == null) {
+            bandsByPath = new HashMap<String, BandData>();
+        }
+        bandsByPath.put(path, band);
+    }
+
+    /**
+     * Merges the band added to the subtree and its children into the index.
+     * @return false if the band can not be merged and the index should be rebuilt
+     */
+    boolean merge(BandData band) {
+        bandsByPath = null;
+        return mergeBands(band);
+    }
+
+    protected void indexBands(BandData band) {
+        if (!bandsByName.containsKey(band.name)) {
+            bandsByName.put(band.name, band);
+        }
+
+        for (List<BandData> bands : band.childrenBands.values()) {
+            for (BandData child : bands) {
+                indexBands(child);
+            }
+        }
+    }
+
+    protected boolean mergeBands(BandData band) {
+        //index is built with all children loaded
+        if (band.childrenCursors != null && !band.childrenCursors.isEmpty()) {
+            return false;
+        }
+
+        BandData indexedBand = bandsByName.get(band.name);
+        if (indexedBand == null || precedes(band, indexedBand)) {
+            bandsByName.put(band.name, band);
+        }
+
+        for (List<BandData> bands : band.childrenBands.values()) {
+            if (bands instanceof SpillingBandList) {
+                return false;
+            }
+            for (BandData child : bands) {
+                if (!mergeBands(child)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the band goes before the other band in depth-first order of the tree
+     */
+    protected static boolean precedes(BandData band, BandData otherBand) {
+        List<BandData> path = getPathFromRoot(band);
+        List<BandData> otherPath = getPathFromRoot(otherBand);
+        int level = 0;
+        while (level < path.size() && level < otherPath.size() && path.get(level) == otherPath.get(level)) {
+            level++;
+        }
+        if (level == 0) {
+            return false;
+        }
+        if (level == path.size() || level == otherPath.size()) {
+            return level == path.size();
+        }
+
+        BandData parent = path.get(level - 1);
+        BandData child = path.get(level);
+        BandData otherChild = otherPath.get(level);
+        if (!child.name.equals(otherChild.name)) {
+            for (String bandName : parent.childrenBands.keySet()) {
+                if (bandName.equals(child.name) || bandName.equals(otherChild.name)) {
+                    return bandName.equals(child.name);
+                }
+            }
+            return false;
+        }
+
+        List<BandData> siblings = parent.childrenBands.get(child.name);
+        //bands are usually added to the end of the list
+        BandData lastSibling = siblings.get(siblings.size() - 1);
+        if (lastSibling == child || lastSibling == otherChild) {
+            return lastSibling == otherChild;
+        }
+        for (BandData sibling : siblings) {
+            if (sibling == child || sibling == otherChild) {
+                return sibling == child;
+            }
+        }
+        return false;
+    }
+
+    protected static List<BandData> getPathFromRoot(BandData band) {
+        LinkedList<BandData> path = new LinkedList<BandData>();
+        for (BandData currentBand = band; currentBand != null; currentBand = currentBand.parentBand) {
+            path.addFirst(currentBand);
+        }
+        return new ArrayList<BandData>(path);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Mutable map view of the band row which keeps values in an array indexed by the shared {@link BandRowSchema}.
+ * Entries are iterated in order of schema columns. The map is not thread safe, as HashMap.
+ */
+public class BandRowMap extends AbstractMap<String, Object> implements Serializable {
+    private static final long serialVersionUID = 2450922070248020314L;
+
+    //enum is used to keep the marker identity after deserialization
+    protected enum Marker {
+        NULL
+    }
+
+    protected final BandRowSchema schema;
+    protected Object[] values;
+    protected int size;
+
+    public BandRowMap(BandRowSchema schema) {
+        this.schema = schema;
+        this.values = new Object[schema.getColumnCount()];
+    }
+
+    public BandRowSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findIndex(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = findIndex(key);
+        return index >= 0 ? decode(values[index]) : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = schema.indexOf(key);
+        if (index < 0) {
+            index = schema.addColumn(key);
+        }
+        if (index >= values.length) {
+            values = Arrays.copyOf(values, Math.max(index + 1, schema.getColumnCount()));
+        }
+
+        Object oldValue = values[index];
+        values[index] = value != null ? schema.encodeValue(value) : Marker.NULL;
+        if (oldValue == null) {
+            size++;
+        }
+        return decode(oldValue);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int index = findIndex(key);
+        return index >= 0 ? removeAt(index) : null;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    //returns index of the column only if the row contains value for it
+    protected int findIndex(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+
+        int index = schema.indexOf((String) key);
+        return index >= 0 && index < values.length && values[index] != null ? index : -1;
+    }
+
+    protected Object removeAt(int index) {
+        Object oldValue = values[index];
+        values[index] = null;
+        size--;
+        return decode(oldValue);
+    }
+
+    protected static Object decode(Object value) {
+        return value == Marker.NULL ? null : value;
+    }
+
+    protected class EntryIterator implements Iterator<Entry<String, Object>> {
+        protected int nextIndex = -1;
+        protected int currentIndex = -1;
+
+        public EntryIterator() {
+            nextIndex = findNext(0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextIndex >= 0;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (nextIndex < 0) {
+                throw new NoSuchElementException();
+            }
+
+            currentIndex = nextIndex;
+            nextIndex = findNext(currentIndex + 1);
+            return new RowEntry(currentIndex);
+        }
+
+        @Override
+        public void remove() {
+            if (currentIndex < 0 || values[currentIndex] == null) {
+                throw new IllegalStateException();
+            }
+            removeAt(currentIndex);
+        }
+
+        protected int findNext(int start) {
+            for (int i = start; i < values.length; i++) {
+                if (values[i] != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    protected class RowEntry implements Entry<String, Object> {
+        protected final int index;
+
+        public RowEntry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return schema.getColumn(index);
+        }
+
+        @Override
+        public Object getValue() {
+            return decode(values[index]);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object oldValue = values[index];
+            values[index] = value != null ? schema.encodeValue(value) : Marker.NULL;
+            return decode(oldValue);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return Objects.equals(getKey(), entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Column schema shared by the rows of bands with the same name.
+ * Rows created by the schema keep only an array of values, columns are added to the schema on demand.
+ * Repeated string values are replaced with the single instance from the schema dictionary.
+ */
+public class BandRowSchema implements Serializable {
+    private static final long serialVersionUID = 4169536368612331931L;
+
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 10000;
+
+    protected volatile Map<String, Integer> columnIndexes = Collections.emptyMap();
+    protected volatile String[] columns = new String[0];
+
+    protected final int maxDictionarySize;
+    protected transient Map<String, String> dictionary;
+
+    public BandRowSchema() {
+        this(DEFAULT_MAX_DICTIONARY_SIZE);
+    }
+
+    /**
+     * @param maxDictionarySize count of distinct string values which are kept in the dictionary, 0 disables it
+     */
+    public BandRowSchema(int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+        if (maxDictionarySize > 0) {
+            dictionary = new ConcurrentHashMap<String, String>();
+        }
+    }
+
+    public int indexOf(String column) {
+        Integer index = columnIndexes.get(column);
+        return index != null ? index : -1;
+    }
+
+    public synchronized int addColumn(String column) {
+        int index = indexOf(column);
+        if (index >= 0) {
+            return index;
+        }
+
+        index = columns.length;
+        Map<String, Integer> newIndexes = new HashMap<String, Integer>(columnIndexes);
+        newIndexes.put(column, index);
+        String[] newColumns = Arrays.copyOf(columns, index + 1);
+        newColumns[index] = column;
+
+        columns = newColumns;
+        columnIndexes = newIndexes;
+        return index;
+    }
+
+    public String getColumn(int index) {
+        return columns[index];
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public Object encodeValue(Object value) {
+        if (value instanceof String && dictionary != null) {
+            String string = (String) value;
+            String sharedString = dictionary.get(string);
+            if (sharedString != null) {
+                return sharedString;
+            }
+
+            if (dictionary.size() < maxDictionarySize) {
+                sharedString = dictionary.putIfAbsent(string, string);
+                return sharedString != null ? sharedString : string;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return new mutable row which contains all values of the given map
+     */
+    public Map<String, Object> createRow(Map<String, Object> data) {
+        BandRowMap row = new BandRowMap(this);
+        row.putAll(data);
+        return row;
+    }
+}
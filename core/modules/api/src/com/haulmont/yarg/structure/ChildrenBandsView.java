@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Children map of the band returned to the callers, indexes of the tree are dropped when it is changed
+ */
+class ChildrenBandsView extends AbstractMap<String, List<BandData>> {
+    protected final BandData band;
+
+    ChildrenBandsView(BandData band) {
+        this.band = band;
+    }
+
+    @Override
+    public int size() {
+        return band.childrenBands.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return band.childrenBands.containsKey(key);
+    }
+
+    @Override
+    public List<BandData> get(Object key) {
+        return band.childrenBands.get(key);
+    }
+
+    @Override
+    public List<BandData> put(String key, List<BandData> value) {
+        List<BandData> previous = band.childrenBands.put(key, value);
+        band.structureChanged();
+        return previous;
+    }
+
+    @Override
+    public List<BandData> remove(Object key) {
+        List<BandData> previous = band.childrenBands.remove(key);
+        band.structureChanged();
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        band.childrenBands.clear();
+        band.structureChanged();
+    }
+
+    @Override
+    public Set<Entry<String, List<BandData>>> entrySet() {
+        return new AbstractSet<Entry<String, List<BandData>>>() {
+            @Override
+            public int size() {
+                return band.childrenBands.size();
+            }
+
+            @Override
+            public Iterator<Entry<String, List<BandData>>> iterator() {
+                final Iterator<Entry<String, List<BandData>>> iterator = band.childrenBands.entrySet().iterator();
+                return new Iterator<Entry<String, List<BandData>>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, List<BandData>> next() {
+                        final Entry<String, List<BandData>> entry = iterator.next();
+                        return new SimpleEntry<String, List<BandData>>(entry) {
+                            @Override
+                            public List<BandData> setValue(List<BandData> value) {
+                                super.setValue(value);
+                                List<BandData> previous = entry.setValue(value);
+                                band.structureChanged();
+                                return previous;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        band.structureChanged();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Not loaded cursors of the lazily loaded children of the band (see {@link BandData#addChildrenCursor}).
+ * Cursors are registered and taken under the lock of the root band. Bands are read from the taken cursor
+ * without the lock, because the cursor might wait for the bands loaded by other threads.
+ */
+class ChildrenCursors {
+    protected final BandData band;
+    protected final Map<String, BandDataCursor> cursors = new LinkedHashMap<String, BandDataCursor>();
+
+    ChildrenCursors(BandData band) {
+        this.band = band;
+    }
+
+    /**
+     * Called under the lock of the root band.
+     */
+    void put(String bandName, BandDataCursor cursor) {
+        cursors.put(bandName, cursor);
+    }
+
+    /**
+     * Called under the lock of the root band.
+     */
+    boolean isEmpty() {
+        return cursors.isEmpty();
+    }
+
+    /**
+     * @return cursor which is not fetched yet, it is not kept after that
+     */
+    BandDataCursor take(String bandName) {
+        synchronized (band.getRootBand()) {
+            return cursors.remove(bandName);
+        }
+    }
+
+    void fetchAll() {
+        List<String> bandNames;
+        synchronized (band.getRootBand()) {
+            if (cursors.isEmpty()) {
+                return;
+            }
+            bandNames = new ArrayList<String>(cursors.keySet());
+        }
+        for (String bandName : bandNames) {
+            fetch(bandName);
+        }
+    }
+
+    /**
+     * Loads bands of the cursor to the children of the band
+     */
+    void fetch(String bandName) {
+        BandDataCursor cursor = take(bandName);
+        if (cursor != null) {
+            BandData rootBand = band.getRootBand();
+            try {
+                while (cursor.hasNext()) {
+                    BandData child = cursor.next();
+                    synchronized (rootBand) {
+                        band.childrenBands.get(bandName).add(child);
+                        band.bandAdded(child);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    void closeAll() {
+        List<BandDataCursor> cursorsToClose;
+        synchronized (band.getRootBand()) {
+            cursorsToClose = new ArrayList<BandDataCursor>(cursors.values());
+            cursors.clear();
+        }
+        for (BandDataCursor cursor : cursorsToClose) {
+            cursor.close();
+        }
+    }
+}
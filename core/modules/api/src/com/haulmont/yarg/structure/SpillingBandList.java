@@ -0,0 +1,455 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.structure;
+
+import com.haulmont.yarg.exception.ReportingException;
+
+import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * List of sibling bands which keeps first bands on heap and writes the others to a temporary file.
+ * Bands are read back from the file when accessed and are only kept in memory while they are referenced,
+ * so {@link #get(int)} returns the same band object as long as the band is in use (e.g. by a formatter).
+ * Only plain band data is written to the file, so bands which have children or specialized data maps
+ * (e.g. json rows) are always kept on heap.
+ *
+ * Data of bands read from the file is read-only, an attempt to modify it throws {@link UnsupportedOperationException}.
+ *
+ * Bands can only be added to the end of the list. The file is deleted on {@link #close()} or on JVM exit.
+ * The file is read through a single reused buffer rather than memory mapped, so no mapping keeps the file open
+ * after it is closed and it can be deleted on all platforms.
+ */
+public class SpillingBandList extends AbstractList<BandData> implements RandomAccess, Closeable, Serializable {
+    private static final long serialVersionUID = 808188460043992974L;
+
+    protected static final int READ_WINDOW_SIZE = 64 * 1024;
+
+    protected static final byte NULL = 0;
+    protected static final byte STRING = 1;
+    protected static final byte INTEGER = 2;
+    protected static final byte LONG = 3;
+    protected static final byte DOUBLE = 4;
+    protected static final byte BOOLEAN = 5;
+    protected static final byte BIG_DECIMAL = 6;
+    protected static final byte DATE = 7;
+    protected static final byte SQL_TIMESTAMP = 8;
+    protected static final byte SQL_DATE = 9;
+    protected static final byte SQL_TIME = 10;
+    protected static final byte SERIALIZED = 11;
+
+    protected final String name;
+    protected final BandData parentBand;
+    protected final BandOrientation orientation;
+    protected final int heapThreshold;
+    protected final File directory;
+
+    protected final List<BandData> heapBands = new ArrayList<BandData>();
+    //non negative value is offset of the band in the file, negative value -(i + 1) is index of the band in heapBands
+    protected long[] positions = new long[16];
+    protected int size;
+
+    //bands read from the file, references are cleared when bands are not used anymore
+    protected BandReference[] readBands = new BandReference[16];
+    protected final ReferenceQueue<BandData> releasedBands = new ReferenceQueue<BandData>();
+
+    protected final List<String> columns = new ArrayList<String>();
+    protected final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+
+    protected File file;
+    protected DataOutputStream output;
+    protected long fileLength;
+    protected RandomAccessFile input;
+    //part of the file starting at windowStart, the buffer is reused for all reads of the file
+    protected ByteBuffer window;
+    protected long windowStart;
+
+    /**
+     * @param heapThreshold count of bands which are kept on heap
+     * @param directory directory for the temporary file, null means default temporary directory
+     */
+    public SpillingBandList(String name, BandData parentBand, BandOrientation orientation, int heapThreshold, File directory) {
+        this.name = name;
+        this.parentBand = parentBand;
+        this.orientation = orientation;
+        this.heapThreshold = heapThreshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized boolean add(BandData band) {
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            readBands = Arrays.copyOf(readBands, size * 2);
+        }
+
+        if (size < heapThreshold || !isSpillable(band)) {
+            heapBands.add(band);
+            positions[size++] = -heapBands.size();
+        } else {
+            positions[size++] = writeBand(band);
+        }
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized BandData get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        long position = positions[index];
+        if (position < 0) {
+            return heapBands.get((int) (-position - 1));
+        }
+
+        expungeReleasedBands();
+        BandReference reference = readBands[index];
+        BandData band = reference != null ? reference.get() : null;
+        if (band == null) {
+            band = readBand(position);
+            readBands[index] = new BandReference(band, index, releasedBands);
+        }
+        return band;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return count of bands written to the file
+     */
+    public synchronized int getSpilledCount() {
+        return size - heapBands.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (output != null) {
+                output.close();
+            }
+            if (input != null) {
+                input.close();
+            }
+        } catch (IOException e) {
+            //the file is deleted anyway
+        } finally {
+            output = null;
+            input = null;
+            window = null;
+            Arrays.fill(readBands, null);
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    //subclasses of the plain maps might keep more than entries, so classes are checked exactly
+    protected boolean isSpillable(BandData band) {
+        Map<String, Object> data = band.getData();
+        if (!band.getChildrenBandNames().isEmpty() || data == null) {
+            return false;
+        }
+        Class<?> dataClass = data.getClass();
+        return dataClass == HashMap.class || dataClass == LinkedHashMap.class || dataClass == BandRowMap.class;
+    }
+
+    protected void expungeReleasedBands() {
+        BandReference reference;
+        while ((reference = (BandReference) releasedBands.poll()) != null) {
+            if (readBands[reference.index] == reference) {
+                readBands[reference.index] = null;
+            }
+        }
+    }
+
+    //serialized tree keeps all bands
+    protected Object writeReplace() throws ObjectStreamException {
+        return new ArrayList<BandData>(this);
+    }
+
+    protected long writeBand(BandData band) {
+        try {
+            if (output == null) {
+                file = File.createTempFile("yarg-band-", ".tmp", directory);
+                file.deleteOnExit();
+                output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream row = new DataOutputStream(bytes);
+            Map<String, Object> data = band.getData();
+            row.writeInt(data.size());
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                row.writeInt(getColumnIndex(entry.getKey()));
+                writeValue(row, entry.getValue());
+            }
+            row.flush();
+
+            long position = fileLength;
+            output.writeInt(bytes.size());
+            bytes.writeTo(output);
+            fileLength += 4 + bytes.size();
+            return position;
+        } catch (IOException e) {
+            throw new ReportingException(String.format("An error occurred while writing band [%s] to the temporary file", name), e);
+        }
+    }
+
+    protected BandData readBand(long position) {
+        if (output == null) {
+            throw new ReportingException(String.format("Bands [%s] are not available because temporary file has been closed", name));
+        }
+
+        try {
+            ByteBuffer buffer = map(position, 4);
+            int length = buffer.getInt();
+            buffer = map(position + 4, length);
+
+            int entriesCount = buffer.getInt();
+            Map<String, Object> data = parentBand != null ?
+                    parentBand.getRowSchema(name).createRow(Collections.<String, Object>emptyMap()) :
+                    new HashMap<String, Object>();
+            for (int i = 0; i < entriesCount; i++) {
+                String column = columns.get(buffer.getInt());
+                data.put(column, readValue(buffer));
+            }
+
+            BandData band = new BandData(name, parentBand, orientation);
+            band.setData(new ReadOnlyRow(name, data));
+            return band;
+        } catch (IOException e) {
+            throw new ReportingException(String.format("An error occurred while reading band [%s] from the temporary file", name), e);
+        } catch (ClassNotFoundException e) {
+            throw new ReportingException(String.format("An error occurred while reading band [%s] from the temporary file", name), e);
+        }
+    }
+
+    //returns buffer positioned at the given offset of the file, which contains at least length bytes
+    protected ByteBuffer map(long position, int length) throws IOException {
+        if (window == null || position < windowStart || position + length > windowStart + window.limit()) {
+            output.flush();
+            if (input == null) {
+                input = new RandomAccessFile(file, "r");
+            }
+            if (window == null || window.capacity() < length) {
+                window = ByteBuffer.allocate(Math.max(length, READ_WINDOW_SIZE));
+            }
+
+            window.clear();
+            window.limit((int) Math.min(window.capacity(), fileLength - position));
+            FileChannel channel = input.getChannel();
+            while (window.hasRemaining()) {
+                if (channel.read(window, position + window.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            window.flip();
+            windowStart = position;
+        }
+
+        ByteBuffer buffer = window.duplicate();
+        buffer.position((int) (position - windowStart));
+        return buffer;
+    }
+
+    protected int getColumnIndex(String column) {
+        Integer index = columnIndexes.get(column);
+        if (index == null) {
+            index = columns.size();
+            columns.add(column);
+            columnIndexes.put(column, index);
+        }
+        return index;
+    }
+
+    protected void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value.getClass() == BigDecimal.class) {
+            out.writeByte(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value.getClass() == java.sql.Timestamp.class) {
+            out.writeByte(SQL_TIMESTAMP);
+            out.writeLong(((java.sql.Timestamp) value).getTime());
+            out.writeInt(((java.sql.Timestamp) value).getNanos());
+        } else if (value.getClass() == java.sql.Date.class) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == java.sql.Time.class) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Serializable) {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+            objectOutput.writeObject(value);
+            objectOutput.close();
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        } else {
+            throw new ReportingException(String.format("Value [%s] of band [%s] can not be written to the temporary file" +
+                    " because it is not serializable", value.getClass().getName(), name));
+        }
+    }
+
+    protected Object readValue(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        byte type = buffer.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(buffer);
+            case INTEGER:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case BIG_DECIMAL:
+                return new BigDecimal(readString(buffer));
+            case SQL_TIMESTAMP:
+                java.sql.Timestamp timestamp = new java.sql.Timestamp(buffer.getLong());
+                timestamp.setNanos(buffer.getInt());
+                return timestamp;
+            case SQL_DATE:
+                return new java.sql.Date(buffer.getLong());
+            case SQL_TIME:
+                return new java.sql.Time(buffer.getLong());
+            case DATE:
+                return new Date(buffer.getLong());
+            case SERIALIZED:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    return objectInput.readObject();
+                } finally {
+                    objectInput.close();
+                }
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    protected void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected static class BandReference extends WeakReference<BandData> {
+        protected final int index;
+
+        public BandReference(BandData band, int index, ReferenceQueue<BandData> queue) {
+            super(band, queue);
+            this.index = index;
+        }
+    }
+
+    //changes of spilled band data would be lost once the band is released, so they are not allowed
+    protected static class ReadOnlyRow extends AbstractMap<String, Object> implements Serializable {
+        private static final long serialVersionUID = 8301215082846857658L;
+
+        protected final String bandName;
+        protected final Map<String, Object> data;
+
+        public ReadOnlyRow(String bandName, Map<String, Object> data) {
+            this.bandName = bandName;
+            this.data = data;
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public Object get(Object key) {
+            return data.get(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            throw createModificationException();
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw createModificationException();
+        }
+
+        @Override
+        public void clear() {
+            throw createModificationException();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return Collections.unmodifiableMap(data).entrySet();
+        }
+
+        protected UnsupportedOperationException createModificationException() {
+            return new UnsupportedOperationException(String.format("Data of band [%s] is read from the temporary file and can not be modified", bandName));
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.haulmont.yarg.formatters.impl.inline.BitmapContentInliner;
 import com.haulmont.yarg.formatters.impl.inline.ContentInliner;
 import com.haulmont.yarg.formatters.impl.inline.HtmlContentInliner;
 import com.haulmont.yarg.formatters.impl.inline.ImageContentInliner;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.ReportFieldFormat;
 import com.haulmont.yarg.structure.ReportOutputType;
@@ -200,14 +201,7 @@ public abstract class AbstractFormatter implements ReportFormatter {
     protected BandData findBandByPath(String path) {
         if (rootBand.getName().equals(path)) return rootBand;
 
-        String[] pathParts = path.split("\\.");
-        BandData currentBand = rootBand;
-        for (String pathPart : pathParts) {
-            if (currentBand == null) return null;
-            currentBand = currentBand.findBandRecursively(pathPart);
-        }
-
-        return currentBand;
+        return rootBand.findBandByPath(path);
     }
 
     protected BandPathAndParameterName separateBandNameAndParameterName(String alias) {
@@ -232,6 +226,16 @@ public abstract class AbstractFormatter implements ReportFormatter {
         }
     }
 
+    /**
+     * Stops formatting if the report run is cancelled or its time limit is exceeded
+     */
+    protected void checkCancelled() {
+        RunHandle handle = rootBand.getRunHandle();
+        if (handle != null) {
+            handle.checkCancelled();
+        }
+    }
+
     protected ReportFormattingException wrapWithReportingException(String message, Exception e) {
         return new ReportFormattingException(message + ". Template name [" + reportTemplate.getDocumentName() + "]", e);
     }
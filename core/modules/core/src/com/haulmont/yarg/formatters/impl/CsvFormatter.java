@@ -4,6 +4,7 @@ import com.haulmont.yarg.exception.ReportFormattingException;
 import com.haulmont.yarg.exception.UnsupportedFormatException;
 import com.haulmont.yarg.formatters.factory.FormatterFactoryInput;
 import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.BandDataCursor;
 import com.haulmont.yarg.structure.ReportOutputType;
 import com.opencsv.CSVWriter;
 
@@ -42,19 +43,23 @@ public class CsvFormatter extends AbstractFormatter {
 
     protected void writeCsvDocument(BandData rootBand, OutputStream outputStream) {
         try {
-            List<BandData> actualData = getActualData(rootBand);
             CSVWriter writer = new CSVWriter(new OutputStreamWriter(outputStream), separator, CSVWriter.DEFAULT_QUOTE_CHARACTER);
 
             writer.writeNext(header);
 
-            for (BandData row : actualData) {
-                String[] entries = new String[parametersToInsert.size()];
-                for (int i = 0; i < parametersToInsert.size(); i++) {
-                    String parameterName = parametersToInsert.get(i);
-                    String fullParameterName = row.getName() + "." + parameterName;
-                    entries[i] = formatValue(row.getData().get(parameterName), parameterName, fullParameterName);
+            for (String bandName : rootBand.getChildrenBandNames()) {
+                BandDataCursor cursor = rootBand.getChildrenCursor(bandName);
+                try {
+                    while (cursor.hasNext()) {
+                        checkCancelled();
+                        BandData row = cursor.next();
+                        if (isActualData(row)) {
+                            writeRow(writer, row);
+                        }
+                    }
+                } finally {
+                    cursor.close();
                 }
-                writer.writeNext(entries);
             }
 
             writer.close();
@@ -63,13 +68,27 @@ public class CsvFormatter extends AbstractFormatter {
         }
     }
 
+    protected void writeRow(CSVWriter writer, BandData row) {
+        String[] entries = new String[parametersToInsert.size()];
+        for (int i = 0; i < parametersToInsert.size(); i++) {
+            String parameterName = parametersToInsert.get(i);
+            String fullParameterName = row.getName() + "." + parameterName;
+            entries[i] = formatValue(row.getData().get(parameterName), parameterName, fullParameterName);
+        }
+        writer.writeNext(entries);
+    }
+
+    protected boolean isActualData(BandData bandData) {
+        return bandData.getData() != null && !bandData.getData().isEmpty();
+    }
+
     protected List<BandData> getActualData(BandData rootBand) {
         List<BandData> resultData = new ArrayList<>();
         Map<String, List<BandData>> childrenBands = rootBand.getChildrenBands();
 
         if (childrenBands != null && !childrenBands.isEmpty()) {
             childrenBands.forEach((s, bandDataList) -> bandDataList.forEach(bandData -> {
-                if (bandData.getData() != null && !bandData.getData().isEmpty()) {
+                if (isActualData(bandData)) {
                     resultData.add(bandData);
                 }
             }));
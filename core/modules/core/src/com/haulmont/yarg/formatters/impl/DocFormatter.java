@@ -17,6 +17,7 @@ package com.haulmont.yarg.formatters.impl;
 
 import com.google.common.base.Preconditions;
 import com.haulmont.yarg.exception.OpenOfficeException;
+import com.haulmont.yarg.exception.ReportCancelledException;
 import com.haulmont.yarg.exception.ReportingException;
 import com.haulmont.yarg.formatters.factory.FormatterFactoryInput;
 import com.haulmont.yarg.formatters.impl.doc.OfficeComponent;
@@ -86,6 +87,7 @@ public class DocFormatter extends AbstractFormatter {
         try {
             doCreateDocument(outputStream);
         } catch (Exception e) {//just try again if any exceptions occurred
+            checkCancelled();
             log.warn(String.format("An error occurred while generating doc report [%s]. System will retry to generate report again.", reportTemplate.getDocumentName()), e);
 
             for (int i = 0; i < officeIntegration.getCountOfRetry(); i++) {
@@ -119,6 +121,8 @@ public class DocFormatter extends AbstractFormatter {
                     replaceAllAliasesInDocument();//we do it second time to handle several open office bugs (page breaks in html, etc). Do not remove.
                     // Saving document to output stream and closing
                     saveAndClose(ooResourceProvider, xComponent, outputType, outputStream);
+                } catch (ReportCancelledException e) {
+                    throw e;
                 } catch (Exception e) {
                     throw wrapWithReportingException("An error occurred while running task in Open Office server", e);
                 }
@@ -199,6 +203,7 @@ public class DocFormatter extends AbstractFormatter {
             int i = numberOfRowWithAliases;
             for (BandData child : childrenByName) {
                 if (name.equals(child.getName())) {
+                    checkCancelled();
                     fillRow(child, tableManager, i);
                     i++;
                 }
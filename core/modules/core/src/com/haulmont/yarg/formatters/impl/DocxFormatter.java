@@ -184,6 +184,7 @@ public class DocxFormatter extends AbstractFormatter {
 
                 if (bands.size() > 1) {
                     for (final BandData band : bands) {
+                        checkCancelled();
                         Tr newRow = resultingTable.copyRow(rowWithAliases);
                         resultingTable.fillRowFromBand(newRow, band);
                     }
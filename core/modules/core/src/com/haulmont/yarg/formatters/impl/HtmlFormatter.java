@@ -176,8 +176,10 @@ public class HtmlFormatter extends AbstractFormatter {
         for (String bandName : band.getChildrenBands().keySet()) {
             List<BandData> subBands = band.getChildrenBands().get(bandName);
             List<Map> bandModels = new ArrayList<Map>();
-            for (BandData child : subBands)
+            for (BandData child : subBands) {
+                checkCancelled();
                 bandModels.add(getBandModel(child));
+            }
 
             bands.put(bandName, bandModels);
         }
@@ -153,8 +153,12 @@ public class XLSFormatter extends AbstractFormatter {
     }
 
     protected void processDocument() {
-        for (BandData childBand : rootBand.getChildrenList()) {
-            writeBand(childBand);
+        //bands are taken by name, so lazily loaded bands with other names can be loading while these ones are rendered
+        for (String bandName : new ArrayList<String>(rootBand.getChildrenBandNames())) {
+            for (BandData childBand : rootBand.getChildrenByName(bandName)) {
+                checkCancelled();
+                writeBand(childBand);
+            }
         }
 
         updateFormulas();
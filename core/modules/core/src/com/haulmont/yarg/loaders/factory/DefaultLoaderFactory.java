@@ -16,7 +16,10 @@
 package com.haulmont.yarg.loaders.factory;
 
 import com.haulmont.yarg.exception.UnsupportedLoaderException;
+import com.haulmont.yarg.loaders.ReportBatchDataLoader;
 import com.haulmont.yarg.loaders.ReportDataLoader;
+import com.haulmont.yarg.loaders.impl.CachingBatchDataLoader;
+import com.haulmont.yarg.loaders.impl.CachingDataLoader;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -54,6 +57,17 @@ public class DefaultLoaderFactory implements ReportLoaderFactory {
         return this;
     }
 
+    /**
+     * Registers loader which caches results of the queries marked with "cache" additional parameter between report runs.
+     * See {@link CachingDataLoader}. Batch loading is supported if the loader supports it.
+     */
+    public DefaultLoaderFactory registerCachingDataLoader(String key, ReportDataLoader dataLoader, long timeToLiveMillis, int maxSize) {
+        if (dataLoader instanceof ReportBatchDataLoader) {
+            return registerDataLoader(key, new CachingBatchDataLoader((ReportBatchDataLoader) dataLoader, timeToLiveMillis, maxSize));
+        }
+        return registerDataLoader(key, new CachingDataLoader(dataLoader, timeToLiveMillis, maxSize));
+    }
+
     @Override
     public ReportDataLoader createDataLoader(String loaderType) {
         ReportDataLoader dataLoader = dataLoaders.get(loaderType);
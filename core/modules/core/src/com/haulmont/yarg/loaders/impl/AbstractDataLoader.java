@@ -59,6 +59,10 @@ public abstract class AbstractDataLoader implements ReportDataLoader {
         return fieldsConverter;
     }
 
+    /**
+     * @deprecated not used by the loaders, parent band fields are resolved by {@link ScopedParameters} on demand
+     */
+    @Deprecated
     protected void addParentBandDataToParameters(BandData parentBand, Map<String, Object> currentParams) {
         if (parentBand != null) {
             String parentBandName = parentBand.getName();
@@ -18,11 +18,15 @@ package com.haulmont.yarg.loaders.impl;
 
 import com.haulmont.yarg.exception.DataLoadingException;
 import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.util.db.ArrayParameter;
 import groovy.text.GStringTemplateEngine;
+import groovy.text.Template;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,6 +37,77 @@ import java.util.regex.Pattern;
 public abstract class AbstractDbDataLoader extends AbstractDataLoader {
 
     public static final Pattern COMMON_PARAM_PATTERN = Pattern.compile("\\$\\{(.+?)\\}");
+    //parameter with optional enclosing parentheses
+    protected static final Pattern PARAM_TOKEN_PATTERN = Pattern.compile("(\\(\\s*)?\\$\\{(.+?)\\}(\\s*\\))?");
+
+    /**
+     * SQL which binds the collection as one array parameter in HSQLDB, e.g. "where id in (unnest(?))"
+     */
+    public static final String HSQLDB_ARRAY_PARAMETER_SQL = "(UNNEST(?))";
+    /**
+     * SQL which binds the collection as one array parameter in PostgreSQL, e.g. "where id in (select unnest(?))"
+     */
+    public static final String POSTGRES_ARRAY_PARAMETER_SQL = "(SELECT UNNEST(?))";
+
+    protected int compiledQueriesCacheSize = 1000;
+
+    protected String arrayParameterSql;
+
+    protected int queryTemplatesCacheSize = 500;
+    protected GStringTemplateEngine templateEngine = new GStringTemplateEngine();
+    protected Map<String, Template> queryTemplates = Collections.synchronizedMap(
+            new LinkedHashMap<String, Template>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+                    return size() > queryTemplatesCacheSize;
+                }
+            });
+
+    protected Map<String, CompiledQuery> compiledQueries = Collections.synchronizedMap(
+            new LinkedHashMap<String, CompiledQuery>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+                    return size() > compiledQueriesCacheSize;
+                }
+            });
+
+    /**
+     * @param compiledQueriesCacheSize count of parsed query scripts kept by the loader
+     */
+    public void setCompiledQueriesCacheSize(int compiledQueriesCacheSize) {
+        this.compiledQueriesCacheSize = compiledQueriesCacheSize;
+    }
+
+    public int getCompiledQueriesCacheSize() {
+        return compiledQueriesCacheSize;
+    }
+
+    /**
+     * @param queryTemplatesCacheSize count of compiled query templates kept by the loader
+     */
+    public void setQueryTemplatesCacheSize(int queryTemplatesCacheSize) {
+        this.queryTemplatesCacheSize = queryTemplatesCacheSize;
+    }
+
+    public int getQueryTemplatesCacheSize() {
+        return queryTemplatesCacheSize;
+    }
+
+    /**
+     * Enables binding of collection parameters as one JDBC array parameter, so query text does not depend on
+     * the size of the collection. The given SQL replaces the parameter in the query, see {@link #HSQLDB_ARRAY_PARAMETER_SQL}
+     * and {@link #POSTGRES_ARRAY_PARAMETER_SQL}. Collections with values of unknown or different SQL types
+     * are expanded to the list of parameters, as usual.
+     *
+     * @param arrayParameterSql SQL with one parameter, null disables array parameters
+     */
+    public void setArrayParameterSql(String arrayParameterSql) {
+        this.arrayParameterSql = arrayParameterSql;
+    }
+
+    public String getArrayParameterSql() {
+        return arrayParameterSql;
+    }
 
     protected List<Map<String, Object>> fillOutputData(List resList, List<OutputValue> parametersNames) {
         List<Map<String, Object>> outputData = new ArrayList<Map<String, Object>>();
@@ -63,7 +138,7 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
         return outputData;
     }
 
-    private void putValue(Map<String, Object> outputData, OutputValue outputValue, Object value) {
+    protected void putValue(Map<String, Object> outputData, OutputValue outputValue, Object value) {
         outputData.put(outputValue.getValueName(), value);
         if (StringUtils.isNotBlank(outputValue.getSynonym())) {
             outputData.put(outputValue.getSynonym(), value);
@@ -71,25 +146,174 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
     }
 
     protected QueryPack prepareQuery(String query, BandData parentBand, Map<String, Object> reportParams) {
-        Map<String, Object> currentParams = new HashMap<String, Object>();
-        if (reportParams != null) {
-            currentParams.putAll(reportParams);
+        //parameters from parent bands hierarchy are resolved on demand
+        Map<String, Object> currentParams = new ScopedParameters(reportParams, null, parentBand);
+        return prepareQueryWithParameters(query, currentParams, reportParams);
+    }
+
+    /**
+     * Prepares query for the batch loading of the several sibling parent bands.
+     * Each field of parent bands is passed as a collection of distinct values (in order of appearance),
+     * so query should use it with "in" operator. Example: where order_id in ${Orders.id}
+     */
+    protected QueryPack prepareBatchQuery(String query, List<BandData> parentBands, Map<String, Object> reportParams) {
+        Map<String, Set<Object>> batchValues = new LinkedHashMap<String, Set<Object>>();
+        for (BandData parentBand : parentBands) {
+            for (Map.Entry<String, Object> entry : parentBand.getData().entrySet()) {
+                String paramName = parentBand.getName() + "." + entry.getKey();
+                Set<Object> values = batchValues.get(paramName);
+                if (values == null) {
+                    values = new LinkedHashSet<Object>();
+                    batchValues.put(paramName, values);
+                }
+                values.add(entry.getValue());
+            }
         }
+        Map<String, Object> batchParams = new HashMap<String, Object>();
+        for (Map.Entry<String, Set<Object>> entry : batchValues.entrySet()) {
+            batchParams.put(entry.getKey(), new ArrayList<Object>(entry.getValue()));
+        }
+
+        //parameters from common parent bands hierarchy are resolved on demand
+        BandData parentBand = parentBands.isEmpty() ? null : parentBands.get(0).getParentBand();
+        Map<String, Object> currentParams = new ScopedParameters(reportParams, batchParams, parentBand);
+
+        return prepareQueryWithParameters(query, currentParams, reportParams);
+    }
+
+    protected QueryPack prepareQueryWithParameters(String query, Map<String, Object> currentParams, Map<String, Object> reportParams) {
+        CompiledQuery compiledQuery = getCompiledQuery(query);
 
-        //adds parameters from parent bands hierarchy
-        while (parentBand != null) {
-            addParentBandDataToParameters(parentBand, currentParams);
-            parentBand = parentBand.getParentBand();
+        //if value == null && this is user parameter - condition is removed from query
+        Set<String> removedParams = Collections.emptySet();
+        for (String paramName : compiledQuery.getParamNames()) {
+            if (currentParams.get(paramName) == null && reportParams != null && reportParams.containsKey(paramName)) {
+                if (removedParams.isEmpty()) {
+                    removedParams = new LinkedHashSet<String>();
+                }
+                removedParams.add(paramName);
+            }
         }
 
         List<QueryParameter> queryParameters = new ArrayList<QueryParameter>();
-        HashSet<String> paramNames = findParameterNames(query);
-        Map<String, String> paramsToRemoveFromQuery = new LinkedHashMap<String, String>();
+        StringBuilder builder = new StringBuilder(query.length());
+        for (QueryToken token : getQueryTokens(compiledQuery, removedParams)) {
+            if (token.getParamName() == null) {
+                builder.append(token.getText());
+                continue;
+            }
 
-        for (String paramName : paramNames) {
-            Object paramValue = currentParams.get(paramName);
-            String alias = "${" + paramName + "}";
+            QueryParameter parameter = new QueryParameter(token.getParamRegexp(), queryParameters.size() + 1,
+                    convertParameter(currentParams.get(token.getParamName())));
+            ArrayParameter arrayParameter = null;
+            if (!parameter.isSingleValue() && arrayParameterSql != null) {
+                arrayParameter = createArrayParameter(parameter.getMultipleValues());
+                if (arrayParameter != null) {
+                    parameter = new QueryParameter(token.getParamRegexp(), parameter.getPosition(), arrayParameter);
+                }
+            }
+            queryParameters.add(parameter);
+            if (arrayParameter != null) {
+                // Replace multiple parameter with one array parameter, if user already set up () - we remove it
+                if (!token.isEnclosed()) {
+                    builder.append(token.getPrefix());
+                }
+                if (builder.length() == 0 || builder.charAt(builder.length() - 1) != ' ') {
+                    builder.append(' ');
+                }
+                builder.append(arrayParameterSql);
+                if (!token.isEnclosed()) {
+                    builder.append(token.getSuffix());
+                }
+            } else if (parameter.isSingleValue()) {
+                builder.append(token.getPrefix()).append('?').append(token.getSuffix());
+            } else {
+                // Replace multiple parameter with (?,..(N)..,?), if user already set up () - we remove it
+                if (!token.isEnclosed()) {
+                    builder.append(token.getPrefix());
+                }
+                if (builder.length() == 0 || builder.charAt(builder.length() - 1) != ' ') {
+                    builder.append(' ');
+                }
+                builder.append('(');
+                int valuesCount = parameter.getMultipleValues().size();
+                for (int i = 0; i < valuesCount; i++) {
+                    builder.append(i == 0 ? "?" : ",?");
+                }
+                builder.append(')');
+                if (!token.isEnclosed()) {
+                    builder.append(token.getSuffix());
+                }
+            }
+        }
+
+        return new QueryPack(builder.toString().trim(), queryParameters.toArray(new QueryParameter[queryParameters.size()]));
+    }
+
+    /**
+     * @return array parameter with the given values, or null if values can not be bound as an array,
+     * e.g. if SQL type of the values is unknown
+     */
+    protected ArrayParameter createArrayParameter(List<?> values) {
+        String typeName = null;
+        for (Object value : values) {
+            String valueTypeName = getArrayElementTypeName(value);
+            if (valueTypeName == null || (typeName != null && !typeName.equals(valueTypeName))) {
+                return null;
+            }
+            typeName = valueTypeName;
+        }
+        return typeName != null ? new ArrayParameter(typeName, values.toArray()) : null;
+    }
+
+    protected String getArrayElementTypeName(Object value) {
+        if (value instanceof String) {
+            return "VARCHAR";
+        } else if (value instanceof Integer) {
+            return "INTEGER";
+        } else if (value instanceof Long) {
+            return "BIGINT";
+        } else if (value instanceof BigDecimal) {
+            return "DECIMAL";
+        } else if (value instanceof Double) {
+            return "DOUBLE";
+        } else if (value instanceof Boolean) {
+            return "BOOLEAN";
+        } else if (value instanceof java.sql.Date) {
+            return "DATE";
+        } else if (value instanceof Date) {
+            return "TIMESTAMP";
+        }
+        return null;
+    }
+
+    /**
+     * @return parsed query from the cache, queries are parsed once per loader
+     */
+    protected CompiledQuery getCompiledQuery(String query) {
+        CompiledQuery compiledQuery = compiledQueries.get(query);
+        if (compiledQuery == null) {
+            compiledQuery = new CompiledQuery(query, findParameterNames(query));
+            compiledQueries.put(query, compiledQuery);
+        }
+        return compiledQuery;
+    }
 
+    /**
+     * @return tokens of the query without conditions on the removed parameters, tokens are parsed once per set of removed parameters
+     */
+    protected List<QueryToken> getQueryTokens(CompiledQuery compiledQuery, Set<String> removedParams) {
+        List<QueryToken> tokens = compiledQuery.tokens.get(removedParams);
+        if (tokens == null) {
+            tokens = parseQuery(removeConditions(compiledQuery.getQuery(), removedParams), removedParams);
+            compiledQuery.tokens.put(removedParams.isEmpty() ? Collections.<String>emptySet() : new HashSet<String>(removedParams), tokens);
+        }
+        return tokens;
+    }
+
+    protected String removeConditions(String query, Set<String> removedParams) {
+        Map<String, String> paramsToRemoveFromQuery = new LinkedHashMap<String, String>();
+        for (String paramName : removedParams) {
             String paramNameRegexp = "\\$\\{" + paramName + "\\}";
             String valueRegexp = "([\\w|\\d|\\.|\\_]+|\'.+?\'|\".+?\"|\\(.+?\\))";//fieldName|literal|list or sub-query
             String andRegexp = "\\s+and\\s+";
@@ -110,28 +334,16 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
 
             String boundsRegexp = "\\[\\[.+?" + paramNameRegexp + ".+?\\]\\]";
 
-            if (paramValue == null && reportParams != null && reportParams.containsKey(paramName)) {//if value == null && this is user parameter - remove condition from query
-                paramsToRemoveFromQuery.put("(?i)" + andFirstRgxp, " and 1=1 ");
-                paramsToRemoveFromQuery.put("(?i)" + andLastRgxp, " 1=1 and ");
-                paramsToRemoveFromQuery.put("(?i)" + orFirstRgxp, " or 1=0 ");
-                paramsToRemoveFromQuery.put("(?i)" + orLastRgxp, " 1=0 or ");
-
-                paramsToRemoveFromQuery.put("(?i)" + expressionRgxp, " 1=1 ");
-                paramsToRemoveFromQuery.put("(?i)" + isNullRgxp, " 1=1 ");
-                paramsToRemoveFromQuery.put("(?i)" + isNotNullRgxp, " 1=0 ");
-
-                paramsToRemoveFromQuery.put("(?i)" + boundsRegexp, " ");
-            } else if (query.contains(alias)) {//otherwise - create parameter and save each entry's position
-                Pattern pattern = Pattern.compile(paramNameRegexp);
-                Matcher replaceMatcher = pattern.matcher(query);
-
-                int subPosition = 0;
-                while (replaceMatcher.find(subPosition)) {
-                    subPosition = replaceMatcher.start();
-                    queryParameters.add(new QueryParameter(paramNameRegexp, subPosition, convertParameter(paramValue)));
-                    subPosition = replaceMatcher.end();
-                }
-            }
+            paramsToRemoveFromQuery.put("(?i)" + andFirstRgxp, " and 1=1 ");
+            paramsToRemoveFromQuery.put("(?i)" + andLastRgxp, " 1=1 and ");
+            paramsToRemoveFromQuery.put("(?i)" + orFirstRgxp, " or 1=0 ");
+            paramsToRemoveFromQuery.put("(?i)" + orLastRgxp, " 1=0 or ");
+
+            paramsToRemoveFromQuery.put("(?i)" + expressionRgxp, " 1=1 ");
+            paramsToRemoveFromQuery.put("(?i)" + isNullRgxp, " 1=1 ");
+            paramsToRemoveFromQuery.put("(?i)" + isNotNullRgxp, " 1=0 ");
+
+            paramsToRemoveFromQuery.put("(?i)" + boundsRegexp, " ");
         }
 
         for (Map.Entry<String, String> entry : paramsToRemoveFromQuery.entrySet()) {
@@ -139,32 +351,48 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
         }
         query = query.replaceAll("\\[\\[", "");
         query = query.replaceAll("\\]\\]", "");
+        return query;
+    }
 
-        // Sort params by position
-        Collections.sort(queryParameters, new Comparator<QueryParameter>() {
-            @Override
-            public int compare(QueryParameter o1, QueryParameter o2) {
-                return o1.getPosition().compareTo(o2.getPosition());
+    /**
+     * Splits the query to literal parts and parameters.
+     * Spaces are collapsed in literal parts, parameters with removed conditions are kept as literal parts.
+     */
+    protected List<QueryToken> parseQuery(String query, Set<String> removedParams) {
+        List<QueryToken> tokens = new ArrayList<QueryToken>();
+        StringBuilder literal = new StringBuilder();
+        Matcher matcher = PARAM_TOKEN_PATTERN.matcher(query);
+        int position = 0;
+        while (matcher.find()) {
+            String paramName = matcher.group(2);
+            literal.append(query, position, matcher.start());
+            if (removedParams.contains(paramName)) {
+                literal.append(matcher.group());
+            } else {
+                if (literal.length() > 0) {
+                    tokens.add(new QueryToken(collapseSpaces(literal.toString())));
+                    literal.setLength(0);
+                }
+                tokens.add(new QueryToken(paramName, collapseSpaces(StringUtils.defaultString(matcher.group(1))),
+                        collapseSpaces(StringUtils.defaultString(matcher.group(3)))));
             }
-        });
-
-        //normalize params position to 1..n
-        for (int i = 1; i <= queryParameters.size(); i++) {
-            QueryParameter queryParameter = queryParameters.get(i - 1);
-            queryParameter.setPosition(i);
+            position = matcher.end();
         }
-
-        for (QueryParameter parameter : queryParameters) {
-            query = insertParameterToQuery(query, parameter);
+        literal.append(query, position, query.length());
+        if (literal.length() > 0) {
+            tokens.add(new QueryToken(collapseSpaces(literal.toString())));
         }
+        return tokens;
+    }
 
-        return new QueryPack(query.trim().replaceAll(" +", " "), queryParameters.toArray(new QueryParameter[queryParameters.size()]));
+    protected String collapseSpaces(String text) {
+        return text.replaceAll(" +", " ");
     }
 
     @SuppressWarnings("unchecked")
     protected String processQueryTemplate(String query, BandData parentBand, Map<String, Object> reportParams) {
         try {
-            GStringTemplateEngine engine = new GStringTemplateEngine();
+            Template template = getQueryTemplate(query);
             Map bindings = new HashMap();
             if (reportParams != null) {
                 bindings.putAll(reportParams);
@@ -175,7 +403,7 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
                 }
                 parentBand = parentBand.getParentBand();
             }
-            return engine.createTemplate(query).make(bindings).toString();
+            return template.make(bindings).toString();
         } catch (ClassNotFoundException e) {
             throw new DataLoadingException(String.format("An error occurred while loading processing query template [%s]", query), e);
         } catch (IOException e) {
@@ -183,6 +411,18 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
         }
     }
 
+    /**
+     * @return compiled template of the query from the cache, it is compiled once per query text
+     */
+    protected Template getQueryTemplate(String query) throws ClassNotFoundException, IOException {
+        Template template = queryTemplates.get(query);
+        if (template == null) {
+            template = templateEngine.createTemplate(query);
+            queryTemplates.put(query, template);
+        }
+        return template;
+    }
+
     protected HashSet<String> findParameterNames(String query) {
         HashSet<String> paramsStr = new LinkedHashSet<String>();
         Matcher paramMatcher = COMMON_PARAM_PATTERN.matcher(query);
@@ -193,24 +433,54 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
         return paramsStr;
     }
 
-    protected String insertParameterToQuery(String query, QueryParameter parameter) {
-        if (parameter.isSingleValue()) {
-            // Replace single parameter with ?
-            query = query.replaceAll(parameter.getParamRegexp(), "?");
-        } else {
-            // Replace multiple parameter with (?,..(N)..,?)
-            List<?> multipleValues = parameter.getMultipleValues();
-            StringBuilder builder = new StringBuilder(" (");
-            for (Object value : multipleValues) {
-                builder.append("?,");
+    /**
+     * @return values of query parameters in order of binding, collections are expanded
+     */
+    protected List<Object> getParameterValues(QueryPack pack) {
+        List<Object> resultingParams = new ArrayList<Object>();
+        for (QueryParameter queryParameter : pack.getParams()) {
+            if (queryParameter.isSingleValue()) {
+                resultingParams.add(queryParameter.getValue());
+            } else {
+                resultingParams.addAll(queryParameter.getMultipleValues());
             }
-            builder.deleteCharAt(builder.length() - 1);
-            builder.append(")");
+        }
+        return resultingParams;
+    }
+
+    protected Object createCacheKey(QueryPack pack) {
+        return new QueryPackKey(pack, getParameterValues(pack));
+    }
 
-            query = query.replaceAll("\\(\\s*" + parameter.getParamRegexp() + "\\s*\\)", builder.toString());//if user already set up () - we remove it
-            query = query.replaceAll(parameter.getParamRegexp(), builder.toString());
+    /**
+     * Key of the prepared query, consists of the query text and bound parameter values.
+     * The query is kept in the key, so it is not prepared again to load data on a cache miss.
+     */
+    protected static class QueryPackKey {
+        protected final QueryPack pack;
+        protected final List<Object> parameterValues;
+
+        public QueryPackKey(QueryPack pack, List<Object> parameterValues) {
+            this.pack = pack;
+            this.parameterValues = parameterValues;
+        }
+
+        public QueryPack getPack() {
+            return pack;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryPackKey)) return false;
+            QueryPackKey that = (QueryPackKey) o;
+            return pack.getQuery().equals(that.pack.getQuery()) && parameterValues.equals(that.parameterValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pack.getQuery().hashCode() + parameterValues.hashCode();
         }
-        return query;
     }
 
     protected static class QueryPack {
@@ -277,6 +547,76 @@ public abstract class AbstractDbDataLoader extends AbstractDataLoader {
         }
     }
 
+    /**
+     * Query script with parsed variants for different sets of parameters which conditions are removed
+     */
+    protected static class CompiledQuery {
+        private final String query;
+        private final Set<String> paramNames;
+        private final Map<Set<String>, List<QueryToken>> tokens = new ConcurrentHashMap<Set<String>, List<QueryToken>>();
+
+        public CompiledQuery(String query, Set<String> paramNames) {
+            this.query = query;
+            this.paramNames = paramNames;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public Set<String> getParamNames() {
+            return paramNames;
+        }
+    }
+
+    /**
+     * Literal part of the query or parameter with the text around it which is replaced together with the parameter
+     */
+    protected static class QueryToken {
+        private final String text;
+        private final String paramName;
+        private final String prefix;
+        private final String suffix;
+
+        public QueryToken(String text) {
+            this.text = text;
+            this.paramName = null;
+            this.prefix = null;
+            this.suffix = null;
+        }
+
+        public QueryToken(String paramName, String prefix, String suffix) {
+            this.text = null;
+            this.paramName = paramName;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getParamName() {
+            return paramName;
+        }
+
+        public String getParamRegexp() {
+            return "\\$\\{" + paramName + "\\}";
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+
+        public boolean isEnclosed() {
+            return !prefix.isEmpty() && !suffix.isEmpty();
+        }
+    }
+
     protected static class OutputValue {
         private String valueName;
         private String synonym;
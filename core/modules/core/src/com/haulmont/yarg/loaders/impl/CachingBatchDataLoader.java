@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders.impl;
+
+import com.haulmont.yarg.loaders.ReportBatchDataLoader;
+import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.ReportQuery;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caching loader (see {@link CachingDataLoader}) for the delegate which supports batch loading.
+ * Batch loading is passed to the delegate without caching.
+ */
+public class CachingBatchDataLoader extends CachingDataLoader implements ReportBatchDataLoader {
+    public CachingBatchDataLoader(ReportBatchDataLoader delegate, long timeToLiveMillis, int maxSize) {
+        super(delegate, timeToLiveMillis, maxSize);
+    }
+
+    @Override
+    public List<Map<String, Object>> loadBatchData(ReportQuery reportQuery, List<BandData> parentBands, Map<String, Object> params) {
+        return ((ReportBatchDataLoader) delegate).loadBatchData(reportQuery, parentBands, params);
+    }
+}
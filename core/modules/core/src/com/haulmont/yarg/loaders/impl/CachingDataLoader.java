@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders.impl;
+
+import com.google.common.base.Preconditions;
+import com.haulmont.yarg.loaders.ReportCacheableDataLoader;
+import com.haulmont.yarg.loaders.ReportDataLoader;
+import com.haulmont.yarg.loaders.impl.json.JsonMap;
+import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.ReportQuery;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loader which keeps results of another loader between report runs.
+ * Only queries which have additional parameter "cache" = true are cached, other queries are passed to the delegate.
+ * Results are keyed by loader type and the key provided by the delegate (see {@link ReportCacheableDataLoader}),
+ * so for sql queries it is resolved query text and bound parameter values.
+ * Entries expire after time to live (can be redefined for a query with "cacheTtl" additional parameter, in milliseconds),
+ * least recently used entries are evicted if the cache is full.
+ *
+ * Cached rows are copied on each read, so formatters and data extractor can modify them.
+ * The loader does not support batch loading, see {@link CachingBatchDataLoader} for batch loaders.
+ */
+public class CachingDataLoader implements ReportCacheableDataLoader {
+    public static final String CACHE_PARAM = "cache";
+    public static final String CACHE_TTL_PARAM = "cacheTtl";
+
+    protected final ReportDataLoader delegate;
+    protected final long timeToLiveMillis;
+    protected final int maxSize;
+
+    protected final Map<Object, CacheEntry> cache;
+    protected final AtomicLong hitCount = new AtomicLong();
+    protected final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param timeToLiveMillis default time to live of the cached result, 0 or negative value means that entries do not expire
+     * @param maxSize maximum count of the cached results
+     */
+    public CachingDataLoader(ReportDataLoader delegate, long timeToLiveMillis, final int maxSize) {
+        Preconditions.checkNotNull(delegate, "\"delegate\" parameter can not be null");
+        Preconditions.checkArgument(maxSize > 0, "\"maxSize\" should be positive");
+        this.delegate = delegate;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Object, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CacheEntry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @Override
+    public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+        if (!isCacheable(reportQuery)) {
+            return delegate.loadData(reportQuery, parentBand, params);
+        }
+
+        Object delegateKey = ((ReportCacheableDataLoader) delegate).createCacheKey(reportQuery, parentBand, params);
+        if (delegateKey == null) {
+            return delegate.loadData(reportQuery, parentBand, params);
+        }
+        return loadCachedData(reportQuery, parentBand, params, delegateKey);
+    }
+
+    /**
+     * Key is created by the delegate, so it is used to look up the result without creating the key again
+     */
+    @Override
+    public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params, Object cacheKey) {
+        if (cacheKey == null) {
+            return loadData(reportQuery, parentBand, params);
+        }
+        if (!isCacheable(reportQuery)) {
+            return ((ReportCacheableDataLoader) delegate).loadData(reportQuery, parentBand, params, cacheKey);
+        }
+        return loadCachedData(reportQuery, parentBand, params, cacheKey);
+    }
+
+    protected List<Map<String, Object>> loadCachedData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params,
+                                                       Object delegateKey) {
+        Object key = Arrays.asList(reportQuery.getLoaderType(), delegateKey);
+        long now = currentTimeMillis();
+        synchronized (cache) {
+            CacheEntry entry = cache.get(key);
+            if (entry != null && entry.isExpired(now)) {
+                cache.remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                hitCount.incrementAndGet();
+                return copyRows(entry.rows);
+            }
+        }
+
+        missCount.incrementAndGet();
+        List<Map<String, Object>> rows = ((ReportCacheableDataLoader) delegate).loadData(reportQuery, parentBand, params, delegateKey);
+        if (rows == null) {
+            //scripts might return null instead of empty result
+            rows = new ArrayList<Map<String, Object>>();
+        }
+        long ttl = getTimeToLive(reportQuery);
+        CacheEntry entry = new CacheEntry(copyRows(rows), ttl > 0 ? now + ttl : Long.MAX_VALUE);
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+        return rows;
+    }
+
+    @Override
+    public Object createCacheKey(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+        return delegate instanceof ReportCacheableDataLoader ?
+                ((ReportCacheableDataLoader) delegate).createCacheKey(reportQuery, parentBand, params) : null;
+    }
+
+    public ReportDataLoader getDelegate() {
+        return delegate;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    protected boolean isCacheable(ReportQuery reportQuery) {
+        if (!(delegate instanceof ReportCacheableDataLoader) || reportQuery.getAdditionalParams() == null) {
+            return false;
+        }
+
+        Object cacheParam = reportQuery.getAdditionalParams().get(CACHE_PARAM);
+        return Boolean.TRUE.equals(cacheParam) || "true".equals(cacheParam);
+    }
+
+    protected long getTimeToLive(ReportQuery reportQuery) {
+        Object ttlParam = reportQuery.getAdditionalParams().get(CACHE_TTL_PARAM);
+        if (ttlParam instanceof Number) {
+            return ((Number) ttlParam).longValue();
+        } else if (ttlParam != null) {
+            return Long.parseLong(ttlParam.toString().trim());
+        }
+        return timeToLiveMillis;
+    }
+
+    protected List<Map<String, Object>> copyRows(List<Map<String, Object>> rows) {
+        List<Map<String, Object>> copy = new ArrayList<Map<String, Object>>(rows.size());
+        for (Map<String, Object> row : rows) {
+            copy.add(copyRow(row));
+        }
+        return copy;
+    }
+
+    protected Map<String, Object> copyRow(Map<String, Object> row) {
+        if (row instanceof JsonMap) {
+            //json map resolves nested paths, so it should be kept
+            return new JsonMap(new HashMap<String, Object>(row));
+        }
+        return new HashMap<String, Object>(row);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected static class CacheEntry {
+        protected final List<Map<String, Object>> rows;
+        protected final long expirationTime;
+
+        public CacheEntry(List<Map<String, Object>> rows, long expirationTime) {
+            this.rows = rows;
+            this.expirationTime = expirationTime;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expirationTime;
+        }
+    }
+}
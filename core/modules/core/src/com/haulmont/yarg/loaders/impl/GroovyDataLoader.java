@@ -16,14 +16,23 @@
 package com.haulmont.yarg.loaders.impl;
 
 import com.haulmont.yarg.exception.DataLoadingException;
-import com.haulmont.yarg.loaders.ReportDataLoader;
+import com.haulmont.yarg.exception.ReportCancelledException;
+import com.haulmont.yarg.loaders.ReportBatchDataLoader;
+import com.haulmont.yarg.loaders.ReportCacheableDataLoader;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.ReportQuery;
 import com.haulmont.yarg.util.groovy.Scripting;
+import groovy.lang.Closure;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Loads data using groovy script
@@ -31,8 +40,21 @@ import java.util.Map;
  *
  * Example:
  * return [['a':123, 'b':321], ['a':456, 'b':params['param1']]]
+ *
+ * To produce many rows without keeping them in memory, script can return rows lazily:
+ * iterable or iterator of maps, or closure which is called for the next rows until it returns null.
+ * Closure can return one row (map) or a page of rows (collection of maps):
+ * def reader = new File(params['path']).newReader()
+ * return { -&gt; def line = reader.readLine(); line != null ? ['line':line] : null }
+ * Rows are taken while the band is filled, so streamed first level bands keep only the current chunk in memory.
+ * Rows of iterator and closure can be iterated only once.
+ *
+ * In batch mode script gets list of sibling parent bands as "parentBands" variable
+ *
+ * Handle of the report run is available as "runHandle" variable (can be null), long running scripts
+ * should check it between rows: runHandle?.checkCancelled()
  */
-public class GroovyDataLoader implements ReportDataLoader {
+public class GroovyDataLoader implements ReportBatchDataLoader, ReportCacheableDataLoader {
     private Scripting scripting;
 
     public GroovyDataLoader(Scripting scripting) {
@@ -47,9 +69,183 @@ public class GroovyDataLoader implements ReportDataLoader {
             scriptParams.put("reportQuery", reportQuery);
             scriptParams.put("parentBand", parentBand);
             scriptParams.put("params", params);
-            return scripting.evaluateGroovy(script, scriptParams);
+            scriptParams.put("runHandle", checkCancelled());
+            return createRows(reportQuery, scripting.evaluateGroovy(script, scriptParams));
+        } catch (ReportCancelledException e) {
+            throw e;
         } catch (Throwable e) {
             throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
         }
     }
+
+    /**
+     * Script can use any data of parent bands, so key consists of the script, params and data of all parent bands
+     */
+    @Override
+    public Object createCacheKey(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+        List<Object> parentBandsData = new ArrayList<Object>();
+        while (parentBand != null) {
+            parentBandsData.add(Arrays.asList(parentBand.getName(), new HashMap<String, Object>(parentBand.getData())));
+            parentBand = parentBand.getParentBand();
+        }
+        return Arrays.asList(reportQuery.getScript(),
+                params != null ? new HashMap<String, Object>(params) : null, parentBandsData);
+    }
+
+    @Override
+    public List<Map<String, Object>> loadBatchData(ReportQuery reportQuery, List<BandData> parentBands, Map<String, Object> params) {
+        try {
+            String script = reportQuery.getScript();
+            Map<String, Object> scriptParams = new HashMap<String, Object>();
+            scriptParams.put("reportQuery", reportQuery);
+            scriptParams.put("parentBands", parentBands);
+            scriptParams.put("params", params);
+            scriptParams.put("runHandle", checkCancelled());
+            return createRows(reportQuery, scripting.evaluateGroovy(script, scriptParams));
+        } catch (ReportCancelledException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+        }
+    }
+
+    /**
+     * Wraps lazy result of the script into list, which takes rows while they are iterated
+     */
+    @SuppressWarnings("unchecked")
+    protected List<Map<String, Object>> createRows(ReportQuery reportQuery, Object result) {
+        if (result == null || result instanceof List) {
+            return (List<Map<String, Object>>) result;
+        } else if (result instanceof Iterable) {
+            return new ScriptRows(reportQuery, (Iterable<?>) result, null);
+        } else if (result instanceof Iterator) {
+            return new ScriptRows(reportQuery, null, (Iterator<?>) result);
+        } else if (result instanceof Closure) {
+            return new ScriptRows(reportQuery, null, new ClosureIterator((Closure<?>) result));
+        }
+        throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]." +
+                " Script should return list, iterable, iterator or closure, but it returned [%s]", reportQuery.getName(), result.getClass().getName()));
+    }
+
+    /**
+     * @return handle of the current run, scripts which load many rows can check it with runHandle?.checkCancelled()
+     */
+    protected RunHandle checkCancelled() {
+        RunHandle handle = RunHandle.current();
+        if (handle != null) {
+            handle.checkCancelled();
+        }
+        return handle;
+    }
+
+    /**
+     * Rows which are taken from the lazy result of the script
+     */
+    protected static class ScriptRows extends LazyRowList {
+        protected final ReportQuery reportQuery;
+        protected final Iterable<?> iterable;
+        protected Iterator<?> iterator;
+        protected final RunHandle handle;
+
+        public ScriptRows(ReportQuery reportQuery, Iterable<?> iterable, Iterator<?> iterator) {
+            this.reportQuery = reportQuery;
+            this.iterable = iterable;
+            this.iterator = iterator;
+            this.handle = RunHandle.current();
+        }
+
+        @Override
+        protected Iterator<Map<String, Object>> openIterator() {
+            final Iterator<?> source;
+            if (iterable != null) {
+                source = iterable.iterator();
+            } else if (iterator != null) {
+                source = iterator;
+                iterator = null;
+            } else {
+                throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]." +
+                        " Rows returned as iterator or closure can be iterated only once", reportQuery.getName()));
+            }
+
+            return new Iterator<Map<String, Object>>() {
+                @Override
+                public boolean hasNext() {
+                    try {
+                        return source.hasNext();
+                    } catch (RuntimeException e) {
+                        throw wrapException(e);
+                    }
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public Map<String, Object> next() {
+                    if (handle != null) {
+                        handle.checkCancelled();
+                    }
+                    try {
+                        return (Map<String, Object>) source.next();
+                    } catch (RuntimeException e) {
+                        throw wrapException(e);
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        protected RuntimeException wrapException(RuntimeException e) {
+            if (e instanceof DataLoadingException || e instanceof ReportCancelledException || e instanceof NoSuchElementException) {
+                return e;
+            }
+            return new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+        }
+    }
+
+    /**
+     * Takes rows from the closure, which returns the next row or page of rows on each call, and null when there are no more rows
+     */
+    protected static class ClosureIterator implements Iterator<Object> {
+        protected final Closure<?> closure;
+        protected Iterator<?> page = Collections.emptyList().iterator();
+        protected boolean finished;
+
+        public ClosureIterator(Closure<?> closure) {
+            this.closure = closure;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !finished) {
+                Object result = closure.call();
+                if (result == null) {
+                    finished = true;
+                } else if (result instanceof Map) {
+                    page = Collections.singletonList(result).iterator();
+                } else if (result instanceof Iterable) {
+                    page = ((Iterable<?>) result).iterator();
+                } else {
+                    throw new IllegalStateException(String.format("Closure should return map, collection of maps or null, " +
+                            "but it returned [%s]", result.getClass().getName()));
+                }
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
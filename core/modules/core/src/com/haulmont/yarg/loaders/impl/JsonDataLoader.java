@@ -16,12 +16,17 @@
 package com.haulmont.yarg.loaders.impl;
 
 import com.haulmont.yarg.exception.DataLoadingException;
+import com.haulmont.yarg.exception.ReportCancelledException;
+import com.haulmont.yarg.loaders.ReportCacheableDataLoader;
 import com.haulmont.yarg.loaders.impl.json.JsonMap;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.ReportQuery;
+import com.jayway.jsonpath.DocumentContext;
 import com.jayway.jsonpath.JsonPath;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.Closeable;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -54,25 +59,46 @@ import java.util.regex.Pattern;
  * Query string:
  * parameter=param1 $.store.book[*]
  * We get json string from parameter param1 and select all "book" objects from the "store" object
+ *
+ * Json string is parsed once per report run, all queries with the same json are evaluated against the parsed document.
+ * Json path is compiled once per script. Path with parameters, e.g. $.store.book[?(@.category=='${Band1.category}')],
+ * is resolved to text and compiled for each distinct set of parameter values, so it gains from the cache only when values repeat.
+ * Backslashes and single quotes in parameter values are escaped, so parameters should be used in single quoted strings.
  */
-public class JsonDataLoader extends AbstractDataLoader {
+public class JsonDataLoader extends AbstractDataLoader implements ReportCacheableDataLoader {
     protected Pattern parameterPattern = Pattern.compile("parameter=([A-z0-9_]+)");
 
+    protected int compiledPathsCacheSize = 1000;
+    protected Map<String, CompiledScript> compiledScripts = Collections.synchronizedMap(
+            new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                    return size() > compiledPathsCacheSize;
+                }
+            });
+    protected Map<String, JsonPath> compiledPaths = Collections.synchronizedMap(
+            new LinkedHashMap<String, JsonPath>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, JsonPath> eldest) {
+                    return size() > compiledPathsCacheSize;
+                }
+            });
+
+    //parsed json parameters of the report run, by root band of the run
+    protected final Map<BandData, Map<String, DocumentContext>> runDocuments = new WeakHashMap<>();
+
     @Override
     public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> reportParams) {
-        Map<String, Object> currentParams = copyParameters(reportParams);
-
-        Matcher matcher = parameterPattern.matcher(reportQuery.getScript());
-        String parameterName = getParameterName(matcher);
+        Map<String, Object> currentParams = new ScopedParameters(reportParams, null, parentBand);
 
-        addParentBandDataToParametersRecursively(parentBand, currentParams);
+        CompiledScript compiledScript = getCompiledScript(reportQuery.getScript());
 
         List<Map<String, Object>> result;
 
-        if (parameterName != null) {
-            Object parameterValue = currentParams.get(parameterName);
+        if (compiledScript.getParameterName() != null) {
+            Object parameterValue = currentParams.get(compiledScript.getParameterName());
             if (parameterValue != null && StringUtils.isNotBlank(parameterValue.toString())) {
-                result = loadDataFromScript(reportQuery, currentParams, matcher, parameterValue);
+                result = loadDataFromScript(reportQuery, parentBand, currentParams, compiledScript, parameterValue);
             } else {
                 return Collections.emptyList();
             }
@@ -84,35 +110,127 @@ public class JsonDataLoader extends AbstractDataLoader {
         return result;
     }
 
-    protected List<Map<String, Object>> loadDataFromScript(ReportQuery reportQuery, Map<String, Object> currentParams,
-                                                           Matcher matcher, Object parameterValue) {
+    protected List<Map<String, Object>> loadDataFromScript(ReportQuery reportQuery, BandData parentBand, Map<String, Object> currentParams,
+                                                           CompiledScript compiledScript, Object parameterValue) {
         List<Map<String, Object>> result;
         String json = parameterValue.toString();
-        String script = matcher.replaceAll("");
 
-        if (StringUtils.isBlank(script)) {
+        if (compiledScript.isEmpty()) {
             throw new DataLoadingException(
                     String.format("The script doesn't contain json path expression. " +
                             "Script [%s]", reportQuery.getScript()));
         }
 
-        matcher = AbstractDbDataLoader.COMMON_PARAM_PATTERN.matcher(script);
-        while (matcher.find()) {
-            String parameter = matcher.group(1);
-            script = matcher.replaceAll(String.valueOf(currentParams.get(parameter)));
+        result = extractScriptResult(json, parentBand, getJsonPath(reportQuery, compiledScript, currentParams), reportQuery);
+        return result;
+    }
+
+    /**
+     * @return parsed script from the cache, it is parsed once per script text
+     */
+    protected CompiledScript getCompiledScript(String script) {
+        CompiledScript compiledScript = compiledScripts.get(script);
+        if (compiledScript == null) {
+            Matcher matcher = parameterPattern.matcher(script);
+            String parameterName = getParameterName(matcher);
+            compiledScript = new CompiledScript(parameterName, StringUtils.trim(matcher.replaceAll("")));
+            compiledScripts.put(script, compiledScript);
         }
+        return compiledScript;
+    }
 
-        result = extractScriptResult(json, script, reportQuery);
-        return result;
+    /**
+     * @return compiled path of the script. Path without parameters is compiled once,
+     * path with parameters is compiled for each distinct resolved text which is not in the cache.
+     */
+    protected JsonPath getJsonPath(ReportQuery reportQuery, CompiledScript compiledScript, Map<String, Object> currentParams) {
+        try {
+            if (!compiledScript.hasParameters()) {
+                return compiledScript.getJsonPath();
+            }
+
+            String path = compiledScript.resolvePath(currentParams);
+            JsonPath jsonPath = compiledPaths.get(path);
+            if (jsonPath == null) {
+                jsonPath = JsonPath.compile(path);
+                compiledPaths.put(path, jsonPath);
+            }
+            return jsonPath;
+        } catch (RuntimeException e) {
+            throw new DataLoadingException(
+                    String.format("An error occurred while loading data with script [%s]", reportQuery.getScript()), e);
+        }
     }
 
-    protected List<Map<String, Object>> extractScriptResult(String jsonData, String jsonPathScript, ReportQuery reportQuery) {
+    /**
+     * @return parsed json, each distinct json string is parsed once per report run
+     */
+    protected DocumentContext getDocument(String json, BandData parentBand) {
+        if (parentBand == null) {
+            return JsonPath.parse(json);
+        }
+
+        Map<String, DocumentContext> documents = getRunDocuments(parentBand.getRootBand());
+        //string caches its hash code and map compares references first, so the same json string is found
+        //without comparing its content, equal json in another string is compared by content once per query
+        synchronized (documents) {
+            DocumentContext document = documents.get(json);
+            if (document == null) {
+                document = JsonPath.parse(json);
+                documents.put(json, document);
+            }
+            return document;
+        }
+    }
+
+    protected Map<String, DocumentContext> getRunDocuments(final BandData rootBand) {
+        synchronized (runDocuments) {
+            Map<String, DocumentContext> documents = runDocuments.get(rootBand);
+            if (documents == null) {
+                documents = new HashMap<>();
+                runDocuments.put(rootBand, documents);
+                rootBand.addResource(new Closeable() {
+                    @Override
+                    public void close() {
+                        synchronized (runDocuments) {
+                            runDocuments.remove(rootBand);
+                        }
+                    }
+                });
+            }
+            return documents;
+        }
+    }
+
+    /**
+     * Key consists of the json string and resolved json path expression
+     */
+    @Override
+    public Object createCacheKey(ReportQuery reportQuery, BandData parentBand, Map<String, Object> reportParams) {
+        CompiledScript compiledScript = getCompiledScript(reportQuery.getScript());
+        if (compiledScript.getParameterName() == null) {
+            return null;
+        }
+
+        Map<String, Object> currentParams = new ScopedParameters(reportParams, null, parentBand);
+
+        Object parameterValue = currentParams.get(compiledScript.getParameterName());
+        if (parameterValue == null) {
+            return null;
+        }
+
+        return Arrays.asList(parameterValue.toString(), compiledScript.resolvePath(currentParams));
+    }
+
+    protected List<Map<String, Object>> extractScriptResult(String jsonData, BandData parentBand, JsonPath jsonPath, ReportQuery reportQuery) {
         List<Map<String, Object>> result = new ArrayList<>();
         try {
-            Object scriptResult = JsonPath.read(jsonData, jsonPathScript);
-            parseScriptResult(result, jsonPathScript, scriptResult);
+            Object scriptResult = getDocument(jsonData, parentBand).read(jsonPath);
+            parseScriptResult(result, jsonPath.getPath(), scriptResult);
         } catch (com.jayway.jsonpath.PathNotFoundException e) {
             return Collections.emptyList();
+        } catch (ReportCancelledException e) {
+            throw e;
         } catch (Throwable e) {
             throw new DataLoadingException(
                     String.format("An error occurred while loading data with script [%s]", reportQuery.getScript()), e);
@@ -128,7 +246,11 @@ public class JsonDataLoader extends AbstractDataLoader {
             if (!theList.isEmpty()) {
                 Object listObject = theList.get(0);
                 if (listObject instanceof Map) {
+                    RunHandle handle = RunHandle.current();
                     for (Object object : theList) {
+                        if (handle != null) {
+                            handle.checkCancelled();
+                        }
                         result.add(createMap((Map) object));
                     }
                 } else {
@@ -155,10 +277,16 @@ public class JsonDataLoader extends AbstractDataLoader {
         return null;
     }
 
+    //parsed json is shared by queries of the run, so rows get their own copy of the object fields
+    @SuppressWarnings("unchecked")
     protected Map<String, Object> createMap(Map jsonObject) {
-        return new JsonMap(jsonObject);
+        return new JsonMap(new HashMap<String, Object>(jsonObject));
     }
 
+    /**
+     * @deprecated not used by the loader, parameters are resolved by {@link ScopedParameters}
+     */
+    @Deprecated
     protected Map<String, Object> copyParameters(Map<String, Object> parametersToCopy) {
         Map<String, Object> copyParams = new HashMap<>();
         if (parametersToCopy != null) {
@@ -167,6 +295,10 @@ public class JsonDataLoader extends AbstractDataLoader {
         return copyParams;
     }
 
+    /**
+     * @deprecated not used by the loader, parent band fields are resolved by {@link ScopedParameters} on demand
+     */
+    @Deprecated
     protected void addParentBandDataToParametersRecursively(BandData parentBand, Map<String, Object> currentParams) {
         while (parentBand != null) {
             addParentBandDataToParameters(parentBand, currentParams);
@@ -174,13 +306,81 @@ public class JsonDataLoader extends AbstractDataLoader {
         }
     }
 
-    protected void addParentBandDataToParameters(BandData parentBand, Map<String, Object> currentParams) {
-        if (parentBand != null) {
-            String parentBandName = parentBand.getName();
+    /**
+     * @param compiledPathsCacheSize count of compiled scripts and of compiled paths with parameters kept by the loader
+     */
+    public void setCompiledPathsCacheSize(int compiledPathsCacheSize) {
+        this.compiledPathsCacheSize = compiledPathsCacheSize;
+    }
+
+    public int getCompiledPathsCacheSize() {
+        return compiledPathsCacheSize;
+    }
+
+    /**
+     * Script split to the name of json parameter and the path. Path is kept as parts of text and names of parameters between them,
+     * so it is resolved without regular expressions.
+     */
+    protected static class CompiledScript {
+        protected final String parameterName;
+        protected final String path;
+        protected final List<String> textParts = new ArrayList<>();
+        protected final List<String> pathParameters = new ArrayList<>();
+        protected volatile JsonPath jsonPath;
 
-            for (Map.Entry<String, Object> entry : parentBand.getData().entrySet()) {
-                currentParams.put(parentBandName + "." + entry.getKey(), entry.getValue());
+        public CompiledScript(String parameterName, String path) {
+            this.parameterName = parameterName;
+            this.path = path;
+
+            Matcher matcher = AbstractDbDataLoader.COMMON_PARAM_PATTERN.matcher(path);
+            int lastEnd = 0;
+            while (matcher.find()) {
+                textParts.add(path.substring(lastEnd, matcher.start()));
+                pathParameters.add(matcher.group(1));
+                lastEnd = matcher.end();
             }
+            textParts.add(path.substring(lastEnd));
+        }
+
+        public String getParameterName() {
+            return parameterName;
+        }
+
+        public boolean isEmpty() {
+            return StringUtils.isBlank(path);
+        }
+
+        public boolean hasParameters() {
+            return !pathParameters.isEmpty();
+        }
+
+        /**
+         * @return compiled path without parameters
+         */
+        public JsonPath getJsonPath() {
+            if (jsonPath == null) {
+                jsonPath = JsonPath.compile(path);
+            }
+            return jsonPath;
+        }
+
+        public String resolvePath(Map<String, Object> params) {
+            if (pathParameters.isEmpty()) {
+                return path;
+            }
+
+            StringBuilder resolvedPath = new StringBuilder(textParts.get(0));
+            for (int i = 0; i < pathParameters.size(); i++) {
+                resolvedPath.append(escapeValue(params.get(pathParameters.get(i)))).append(textParts.get(i + 1));
+            }
+            return resolvedPath.toString();
+        }
+
+        /**
+         * Escapes the value to be put into single quoted string of the path, so it can not end the string
+         */
+        protected String escapeValue(Object value) {
+            return String.valueOf(value).replace("\\", "\\\\").replace("'", "\\'");
         }
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders.impl;
+
+import com.haulmont.yarg.loaders.LazyRows;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows which are loaded on demand, while they are iterated, so all rows are never kept in memory at once.
+ * Each iteration loads rows from the beginning. Random access (get, size) loads all rows once and keeps them.
+ */
+public abstract class LazyRowList extends AbstractList<Map<String, Object>> implements LazyRows {
+    protected List<Map<String, Object>> loadedRows;
+    protected Iterator<Map<String, Object>> pendingIterator;
+
+    /**
+     * @return iterator which loads rows from the beginning
+     */
+    protected abstract Iterator<Map<String, Object>> openIterator();
+
+    @Override
+    public Iterator<Map<String, Object>> iterator() {
+        if (loadedRows != null) {
+            return loadedRows.iterator();
+        }
+        //iterator which was opened to check emptiness is reused by the first iteration
+        if (pendingIterator != null) {
+            Iterator<Map<String, Object>> iterator = pendingIterator;
+            pendingIterator = null;
+            return iterator;
+        }
+        return openIterator();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (loadedRows != null) {
+            return loadedRows.isEmpty();
+        }
+        if (pendingIterator == null) {
+            pendingIterator = openIterator();
+        }
+        return !pendingIterator.hasNext();
+    }
+
+    @Override
+    public Map<String, Object> get(int index) {
+        return getLoadedRows().get(index);
+    }
+
+    @Override
+    public int size() {
+        return getLoadedRows().size();
+    }
+
+    protected List<Map<String, Object>> getLoadedRows() {
+        if (loadedRows == null) {
+            List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+            Iterator<Map<String, Object>> iterator = iterator();
+            while (iterator.hasNext()) {
+                rows.add(iterator.next());
+            }
+            loadedRows = rows;
+        }
+        return loadedRows;
+    }
+}
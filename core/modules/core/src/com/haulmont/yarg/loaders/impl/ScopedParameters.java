@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.loaders.impl;
+
+import com.haulmont.yarg.structure.BandData;
+
+import java.util.*;
+
+/**
+ * Read-only view of query parameters which resolves data of the band and its parent bands as "BandName.field".
+ * Values are looked up on access, nothing is copied.
+ *
+ * If several sources contain the same name, the value is taken from the first one of:
+ * the farthest parent band ... the band itself, scope values, parameters.
+ */
+public class ScopedParameters extends AbstractMap<String, Object> {
+    protected final Map<String, Object> parameters;
+    protected final Map<String, Object> values;
+    protected final BandData band;
+
+    /**
+     * @param parameters report parameters, can be null
+     * @param values values of this scope, can be null
+     * @param band band which data (with data of its parent bands) is available in this scope, can be null
+     */
+    public ScopedParameters(Map<String, Object> parameters, Map<String, Object> values, BandData band) {
+        this.parameters = parameters;
+        this.values = values;
+        this.band = band;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+
+        BandData bandWithField = findBandWithField((String) key);
+        if (bandWithField != null) {
+            return bandWithField.getData().get(((String) key).substring(bandWithField.getName().length() + 1));
+        }
+        if (values != null && values.containsKey(key)) {
+            return values.get(key);
+        }
+        return parameters != null ? parameters.get(key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && (findBandWithField((String) key) != null
+                || (values != null && values.containsKey(key))
+                || (parameters != null && parameters.containsKey(key)));
+    }
+
+    /**
+     * Creates a copy with all values, use it only if all parameters are necessary
+     */
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        Map<String, Object> allValues = new HashMap<String, Object>();
+        if (parameters != null) {
+            allValues.putAll(parameters);
+        }
+        if (values != null) {
+            allValues.putAll(values);
+        }
+        for (BandData currentBand = band; currentBand != null; currentBand = currentBand.getParentBand()) {
+            if (currentBand.getData() != null) {
+                for (Entry<String, Object> entry : currentBand.getData().entrySet()) {
+                    allValues.put(currentBand.getName() + "." + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return Collections.unmodifiableMap(allValues).entrySet();
+    }
+
+    //returns the farthest parent band which has the field
+    protected BandData findBandWithField(String key) {
+        int dotIndex = key.indexOf('.');
+        if (dotIndex < 0 || band == null) {
+            return null;
+        }
+
+        BandData result = null;
+        for (BandData currentBand = band; currentBand != null; currentBand = currentBand.getParentBand()) {
+            String name = currentBand.getName();
+            if (name.length() == dotIndex && key.startsWith(name) && currentBand.getData() != null
+                    && currentBand.getData().containsKey(key.substring(dotIndex + 1))) {
+                result = currentBand;
+            }
+        }
+        return result;
+    }
+}
@@ -17,20 +17,35 @@
 package com.haulmont.yarg.loaders.impl;
 
 import com.haulmont.yarg.exception.DataLoadingException;
+import com.haulmont.yarg.loaders.ReportBatchDataLoader;
+import com.haulmont.yarg.loaders.ReportCacheableDataLoader;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.ReportQuery;
+import com.haulmont.yarg.util.db.DbUtils;
+import com.haulmont.yarg.util.db.PreparedStatementCache;
 import com.haulmont.yarg.util.db.QueryRunner;
 import com.haulmont.yarg.util.db.ResultSetHandler;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,19 +57,64 @@ import java.util.regex.Pattern;
  * select login as "Login", password as "Password" from user where create_ts &gt; ${startDate}
  *
  * ${startDate} is alias of the input parameter, which will be passed to the query
+ *
+ * In batch mode parent band fields are passed as collections, so they should be used with "in" operator:
+ * select id as "id", order_id as "orderId" from order_line where order_id in ${Orders.id}
+ *
+ * Fetch size and streaming mode can be set for the loader or for the query with additional params
+ * {@link #FETCH_SIZE_PARAM} and {@link #STREAMING_PARAM}.
+ * In streaming mode rows are read with forward-only, read-only cursor while they are iterated, so they are not collected
+ * into a list. Each iteration executes the query again. The statement (and the connection if it is not run scoped) is open
+ * until all rows are read, iteration which is not finished is closed when the resources of the run are released.
+ * Note that some drivers need additional settings to stream rows, e.g. PostgreSQL driver uses fetch size only
+ * if auto commit is disabled. Other queries of the run use the run scoped connection while rows are streamed,
+ * drivers which allow only one open streaming result per connection (e.g. MySQL) should use chunks instead.
+ *
+ * Query with additional param {@link #CHUNK_KEY_PARAM} is loaded in chunks of {@link #CHUNK_SIZE_PARAM} rows
+ * with keyset pagination, for the drivers which can't stream rows. Chunk key is an output column with unique not null values,
+ * it is written as it should be referenced in sql. Each chunk is loaded by separate query:
+ * select * from (...) chunk_query where key &gt; ? order by key
+ * The key should be an indexed column, and the query should let database push the condition and the order into it,
+ * otherwise each chunk sorts the whole result of the query again.
+ * Chunks are loaded while rows are iterated, so streamed first level bands keep only the current chunk in memory.
  */
-public class SqlDataLoader extends AbstractDbDataLoader {
+public class SqlDataLoader extends AbstractDbDataLoader implements ReportBatchDataLoader, ReportCacheableDataLoader {
+    public static final String FETCH_SIZE_PARAM = "fetchSize";
+    public static final String STREAMING_PARAM = "streaming";
+    public static final String CHUNK_KEY_PARAM = "chunkKey";
+    public static final String CHUNK_SIZE_PARAM = "chunkSize";
+
     private DataSource dataSource;
 
+    protected int fetchSize = 0;
+    protected boolean streaming = false;
+
+    protected int chunkSize = 1000;
+    protected int chunkRetries = 0;
+
+    protected boolean runScopedConnection = false;
+    protected boolean runConnectionReadOnly = true;
+    protected Integer runConnectionIsolation;
+    protected int statementCacheSize = 100;
+
+    protected int outputMappingsCacheSize = 1000;
+    protected Map<String, OutputMapping> outputMappings = Collections.synchronizedMap(
+            new LinkedHashMap<String, OutputMapping>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, OutputMapping> eldest) {
+                    return size() > outputMappingsCacheSize;
+                }
+            });
+    //keyed by run handle, or by root band if the run has no handle,
+    //connections do not refer to their keys, so entries of the runs which are not released are cleared with the keys
+    protected final Map<Object, RunConnection> runConnections = new WeakHashMap<Object, RunConnection>();
+
     public SqlDataLoader(DataSource dataSource) {
         this.dataSource = dataSource;
     }
 
     @Override
     public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
-        List resList;
-        final List<OutputValue> outputValues = new ArrayList<OutputValue>();
-
         String query = reportQuery.getScript();
         if (StringUtils.isBlank(query)) {
             return Collections.emptyList();
@@ -64,66 +124,770 @@ public class SqlDataLoader extends AbstractDbDataLoader {
             if (Boolean.TRUE.equals(reportQuery.getProcessTemplate())) {
                 query = processQueryTemplate(query, parentBand, params);
             }
-            final QueryPack pack = prepareQuery(query, parentBand, params);
+            return loadData(reportQuery, parentBand, prepareQuery(query, parentBand, params));
+        } catch (DataLoadingException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> loadBatchData(ReportQuery reportQuery, List<BandData> parentBands, Map<String, Object> params) {
+        String query = reportQuery.getScript();
+        if (StringUtils.isBlank(query) || parentBands.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        try {
+            if (Boolean.TRUE.equals(reportQuery.getProcessTemplate())) {
+                query = processQueryTemplate(query, parentBands.get(0).getParentBand(), params);
+            }
+            return loadData(reportQuery, parentBands.get(0), prepareBatchQuery(query, parentBands, params));
+        } catch (DataLoadingException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+        }
+    }
+
+    /**
+     * Key consists of the resolved query text and bound parameter values
+     */
+    @Override
+    public Object createCacheKey(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+        String query = reportQuery.getScript();
+        if (StringUtils.isBlank(query)) {
+            return null;
+        }
+
+        if (Boolean.TRUE.equals(reportQuery.getProcessTemplate())) {
+            query = processQueryTemplate(query, parentBand, params);
+        }
+        return createCacheKey(prepareQuery(query, parentBand, params));
+    }
+
+    /**
+     * Loads data with the query prepared to create the key
+     */
+    @Override
+    public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params, Object cacheKey) {
+        if (!(cacheKey instanceof QueryPackKey)) {
+            return loadData(reportQuery, parentBand, params);
+        }
+
+        try {
+            return loadData(reportQuery, parentBand, ((QueryPackKey) cacheKey).getPack());
+        } catch (DataLoadingException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+        }
+    }
+
+    protected List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, QueryPack pack) throws SQLException {
+        if (getChunkKey(reportQuery) != null) {
+            return new ChunkedRows(reportQuery, parentBand, pack);
+        }
+
+        List<Object> resultingParams = getParameterValues(pack);
+        if (isStreaming(reportQuery)) {
+            return new StreamedRows(reportQuery, parentBand, pack.getQuery(), resultingParams.toArray());
+        }
+        return runQuery(reportQuery, parentBand, pack.getQuery(), resultingParams.toArray(), createRowsHandler(pack.getQuery()));
+    }
+
+    /**
+     * Loads rows of the chunk which follow the row with the last key
+     * @param lastKey value of the chunk key in the last row of the previous chunk, null for the first chunk
+     */
+    protected List<Map<String, Object>> loadChunk(ReportQuery reportQuery, BandData parentBand, QueryPack pack, Object lastKey) throws SQLException {
+        String chunkKey = getChunkKey(reportQuery);
+        List<Object> resultingParams = getParameterValues(pack);
+        StringBuilder query = new StringBuilder("select * from (").append(pack.getQuery()).append(") chunk_query");
+        if (lastKey != null) {
+            query.append(" where ").append(chunkKey).append(" > ?");
+            resultingParams.add(lastKey);
+        }
+        query.append(" order by ").append(chunkKey);
+
+        return runQuery(reportQuery, parentBand, query.toString(), resultingParams.toArray(), createRowsHandler(query.toString()));
+    }
+
+    protected Object getChunkKeyValue(ReportQuery reportQuery, Map<String, Object> row) {
+        String chunkKey = StringUtils.strip(getChunkKey(reportQuery), "\"");
+        if (row.containsKey(chunkKey)) {
+            return row.get(chunkKey);
+        }
+        //unquoted names are usually converted to upper case by database
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(chunkKey)) {
+                return entry.getValue();
+            }
+        }
+        throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]." +
+                " Result does not contain chunk key [%s]", reportQuery.getName(), chunkKey));
+    }
 
-            ArrayList<Object> resultingParams = new ArrayList<Object>();
-            QueryParameter[] queryParameters = pack.getParams();
-            for (QueryParameter queryParameter : queryParameters) {
-                if (queryParameter.isSingleValue()) {
-                    resultingParams.add(queryParameter.getValue());
+    protected ResultSetHandler<List> createRowsHandler(final String query) {
+        return new ResultSetHandler<List>() {
+            @Override
+            public List handle(ResultSet rs) throws SQLException {
+                List<Map<String, Object>> outputData = new ArrayList<Map<String, Object>>();
+                OutputMapping mapping = getOutputMapping(rs.getMetaData(), query);
+                Object[] values = new Object[mapping.getColumnCount()];
+
+                RunHandle handle = RunHandle.current();
+
+                while (rs.next()) {
+                    if (handle != null) {
+                        handle.checkCancelled();
+                    }
+                    for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+                        values[columnIndex] = convertOutputValue(rs.getObject(columnIndex + 1));
+                    }
+                    outputData.add(mapping.createRow(values));
+                }
+
+                return outputData;
+            }
+        };
+    }
+
+    /**
+     * @return mapping of result set columns to output values from the cache, it is created once per query text
+     */
+    protected OutputMapping getOutputMapping(ResultSetMetaData metaData, String query) throws SQLException {
+        OutputMapping mapping = outputMappings.get(query);
+        if (mapping == null || !mapping.matches(metaData)) {
+            mapping = new OutputMapping(createOutputValues(metaData, query));
+            outputMappings.put(query, mapping);
+        }
+        return mapping;
+    }
+
+    protected List<OutputValue> createOutputValues(ResultSetMetaData metaData, String query) throws SQLException {
+        List<OutputValue> outputValues = new ArrayList<OutputValue>();
+        for (int columnIndex = 1; columnIndex <= metaData.getColumnCount(); columnIndex++) {
+            String columnName = metaData.getColumnLabel(columnIndex);
+            OutputValue outputValue = new OutputValue(columnName);
+            setCaseSensitiveSynonym(columnName, outputValue, query);
+            outputValues.add(outputValue);
+        }
+        return outputValues;
+    }
+
+    protected void setCaseSensitiveSynonym(String columnName, OutputValue outputValue, String query) {
+        Matcher matcher = Pattern.compile("(?i)as\\s*(" + columnName + ")").matcher(query);
+        if (matcher.find()) {
+            outputValue.setSynonym(matcher.group(1));
+        }
+    }
+
+    protected List runQuery(ReportQuery reportQuery, BandData parentBand, String queryString, Object[] params, ResultSetHandler<List> handler) throws SQLException {
+        QueryRunner runner = createQueryRunner(reportQuery);
+        RunConnection runConnection = getRunConnection(parentBand);
+        if (runConnection == null) {
+            return runner.query(queryString, params, handler);
+        }
+
+        //queries of the run share one connection, so they are executed one by one
+        synchronized (runConnection) {
+            runner.setStatementCache(runConnection.getStatementCache());
+            return runner.query(runConnection.getConnection(), queryString, params, handler);
+        }
+    }
+
+    /**
+     * @return connection of the report run which the parent band belongs to, or null if run scoped connections are disabled.
+     * Queries of the root band have no parent band, their run is found by the run handle bound to the thread.
+     */
+    protected RunConnection getRunConnection(BandData parentBand) throws SQLException {
+        if (!runScopedConnection) {
+            return null;
+        }
+
+        RunHandle handle = parentBand != null ? parentBand.getRunHandle() : RunHandle.current();
+        if (parentBand == null && handle == null) {
+            return null;
+        }
+
+        Object runKey = handle != null ? handle : parentBand.getRootBand();
+        synchronized (runConnections) {
+            RunConnection runConnection = runConnections.get(runKey);
+            if (runConnection == null) {
+                runConnection = new RunConnection(getDataSource().getConnection());
+                runConnections.put(runKey, runConnection);
+                if (handle != null) {
+                    handle.addResource(runConnection);
                 } else {
-                    resultingParams.addAll(queryParameter.getMultipleValues());
+                    parentBand.addResource(runConnection);
+                }
+            }
+            return runConnection;
+        }
+    }
+
+    protected QueryRunner createQueryRunner(ReportQuery reportQuery) {
+        RunHandle handle = RunHandle.current();
+        QueryRunner runner = handle != null ? new CancellableQueryRunner(getDataSource(), handle) : new QueryRunner(getDataSource());
+        runner.setFetchSize(getFetchSize(reportQuery));
+        runner.setForwardOnly(isStreaming(reportQuery));
+        if (getChunkKey(reportQuery) != null) {
+            runner.setMaxRows(getChunkSize(reportQuery));
+        }
+        if (handle != null && handle.getRemainingTime() >= 0) {
+            //statement should not outlive the deadline of the run
+            runner.setQueryTimeout((int) Math.max(1, (handle.getRemainingTime() + 999) / 1000));
+        }
+        return runner;
+    }
+
+    protected int getFetchSize(ReportQuery reportQuery) {
+        Object fetchSizeParam = getAdditionalParam(reportQuery, FETCH_SIZE_PARAM);
+        if (fetchSizeParam instanceof Number) {
+            return ((Number) fetchSizeParam).intValue();
+        } else if (fetchSizeParam != null) {
+            return Integer.parseInt(fetchSizeParam.toString());
+        }
+        return fetchSize;
+    }
+
+    protected boolean isStreaming(ReportQuery reportQuery) {
+        Object streamingParam = getAdditionalParam(reportQuery, STREAMING_PARAM);
+        if (streamingParam != null) {
+            return Boolean.TRUE.equals(streamingParam) || Boolean.parseBoolean(streamingParam.toString());
+        }
+        return streaming;
+    }
+
+    protected String getChunkKey(ReportQuery reportQuery) {
+        Object chunkKeyParam = getAdditionalParam(reportQuery, CHUNK_KEY_PARAM);
+        return chunkKeyParam != null && StringUtils.isNotBlank(chunkKeyParam.toString()) ? chunkKeyParam.toString().trim() : null;
+    }
+
+    protected int getChunkSize(ReportQuery reportQuery) {
+        Object chunkSizeParam = getAdditionalParam(reportQuery, CHUNK_SIZE_PARAM);
+        if (chunkSizeParam instanceof Number) {
+            return ((Number) chunkSizeParam).intValue();
+        } else if (chunkSizeParam != null) {
+            return Integer.parseInt(chunkSizeParam.toString());
+        }
+        return chunkSize;
+    }
+
+    protected Object getAdditionalParam(ReportQuery reportQuery, String name) {
+        return reportQuery.getAdditionalParams() != null ? reportQuery.getAdditionalParams().get(name) : null;
+    }
+
+    /**
+     * If enabled, all queries of a report run use one connection, which is taken on the first query
+     * and released when the run ends.
+     */
+    public void setRunScopedConnection(boolean runScopedConnection) {
+        this.runScopedConnection = runScopedConnection;
+    }
+
+    public boolean isRunScopedConnection() {
+        return runScopedConnection;
+    }
+
+    /**
+     * @param runConnectionReadOnly whether run connection is switched to read-only mode, true by default
+     */
+    public void setRunConnectionReadOnly(boolean runConnectionReadOnly) {
+        this.runConnectionReadOnly = runConnectionReadOnly;
+    }
+
+    public boolean isRunConnectionReadOnly() {
+        return runConnectionReadOnly;
+    }
+
+    /**
+     * @param runConnectionIsolation transaction isolation of the run connection, e.g. {@link Connection#TRANSACTION_REPEATABLE_READ}.
+     * If set, all queries of the run are executed in one transaction, so they see the same state of the database.
+     * Null means that connection settings are not changed.
+     */
+    public void setRunConnectionIsolation(Integer runConnectionIsolation) {
+        this.runConnectionIsolation = runConnectionIsolation;
+    }
+
+    public Integer getRunConnectionIsolation() {
+        return runConnectionIsolation;
+    }
+
+    /**
+     * @param outputMappingsCacheSize count of queries which mappings of result set columns are kept by the loader
+     */
+    public void setOutputMappingsCacheSize(int outputMappingsCacheSize) {
+        this.outputMappingsCacheSize = outputMappingsCacheSize;
+    }
+
+    public int getOutputMappingsCacheSize() {
+        return outputMappingsCacheSize;
+    }
+
+    /**
+     * @param statementCacheSize count of prepared statements cached for the run connection, 0 disables the cache.
+     * Statements of the queries which are executed with their own connections are not cached.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @param fetchSize fetch size of the queries without {@link #FETCH_SIZE_PARAM}, 0 means default fetch size of the driver
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * @param streaming whether the queries without {@link #STREAMING_PARAM} are loaded in streaming mode
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @param chunkSize count of rows in a chunk for the queries with {@link #CHUNK_KEY_PARAM} and without {@link #CHUNK_SIZE_PARAM}
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param chunkRetries count of attempts to load the chunk again if its query fails, 0 by default
+     */
+    public void setChunkRetries(int chunkRetries) {
+        this.chunkRetries = chunkRetries;
+    }
+
+    public int getChunkRetries() {
+        return chunkRetries;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Cancels running statement when the report run is cancelled
+     */
+    protected static class CancellableQueryRunner extends QueryRunner {
+        protected final RunHandle handle;
+
+        public CancellableQueryRunner(DataSource dataSource, RunHandle handle) {
+            super(dataSource);
+            this.handle = handle;
+        }
+
+        @Override
+        protected ResultSet executeQuery(final PreparedStatement stmt) throws SQLException {
+            Runnable listener = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stmt.cancel();
+                    } catch (SQLException e) {
+                        //statement is already finished or closed
+                    }
                 }
+            };
+
+            handle.addCancelListener(listener);
+            try {
+                return super.executeQuery(stmt);
+            } finally {
+                handle.removeCancelListener(listener);
             }
+        }
+    }
+
+    /**
+     * Rows of the query which are loaded by chunks while they are iterated
+     */
+    protected class ChunkedRows extends LazyRowList {
+        protected final ReportQuery reportQuery;
+        protected final BandData parentBand;
+        protected final QueryPack pack;
+        protected final int chunkSize;
+        protected final RunHandle handle;
+
+        public ChunkedRows(ReportQuery reportQuery, BandData parentBand, QueryPack pack) {
+            this.reportQuery = reportQuery;
+            this.parentBand = parentBand;
+            this.pack = pack;
+            this.chunkSize = getChunkSize(reportQuery);
+            this.handle = RunHandle.current();
+        }
+
+        @Override
+        protected Iterator<Map<String, Object>> openIterator() {
+            return new Iterator<Map<String, Object>>() {
+                protected Iterator<Map<String, Object>> chunk = Collections.<Map<String, Object>>emptyList().iterator();
+                protected Object lastKey;
+                protected boolean lastChunk;
 
-            resList = runQuery(reportQuery, pack.getQuery(), resultingParams.toArray(), new ResultSetHandler<List>() {
                 @Override
-                public List handle(ResultSet rs) throws SQLException {
-                    List<Object[]> resList = new ArrayList<Object[]>();
-
-                    while (rs.next()) {
-                        ResultSetMetaData metaData = rs.getMetaData();
-                        if (outputValues.size() == 0) {
-                            for (int columnIndex = 1; columnIndex <= metaData.getColumnCount(); columnIndex++) {
-                                String columnName = metaData.getColumnLabel(columnIndex);
-                                OutputValue outputValue = new OutputValue(columnName);
-                                setCaseSensitiveSynonym(columnName, outputValue);
-                                outputValues.add(outputValue);
+                public boolean hasNext() {
+                    if (!chunk.hasNext() && !lastChunk) {
+                        List<Map<String, Object>> rows = loadNextChunk(lastKey);
+                        lastChunk = rows.size() < chunkSize;
+                        if (!rows.isEmpty()) {
+                            lastKey = getChunkKeyValue(reportQuery, rows.get(rows.size() - 1));
+                            if (lastKey == null) {
+                                throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]." +
+                                        " Chunk key [%s] is null", reportQuery.getName(), getChunkKey(reportQuery)));
                             }
                         }
+                        chunk = rows.iterator();
+                    }
+                    return chunk.hasNext();
+                }
+
+                @Override
+                public Map<String, Object> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return chunk.next();
+                }
 
-                        Object[] values = new Object[metaData.getColumnCount()];
-                        for (int columnIndex = 0; columnIndex < metaData.getColumnCount(); columnIndex++) {
-                            values[columnIndex] = convertOutputValue(rs.getObject(columnIndex + 1));
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        protected List<Map<String, Object>> loadNextChunk(Object lastKey) {
+            //rows are iterated after the loader returns, so the handle of the run is bound again
+            RunHandle previousHandle = RunHandle.bind(handle);
+            try {
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        return loadChunk(reportQuery, parentBand, pack, lastKey);
+                    } catch (SQLException e) {
+                        if (attempt >= chunkRetries || (handle != null && handle.isCancelled())) {
+                            throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
                         }
-                        resList.add(values);
                     }
+                }
+            } finally {
+                RunHandle.bind(previousHandle);
+            }
+        }
+    }
 
-                    return resList;
+    /**
+     * Rows of the query in streaming mode, which are read from the open result set while they are iterated
+     */
+    protected class StreamedRows extends LazyRowList {
+        protected final ReportQuery reportQuery;
+        protected final BandData parentBand;
+        protected final String query;
+        protected final Object[] params;
+        protected final RunHandle handle;
+
+        public StreamedRows(ReportQuery reportQuery, BandData parentBand, String query, Object[] params) {
+            this.reportQuery = reportQuery;
+            this.parentBand = parentBand;
+            this.query = query;
+            this.params = params;
+            this.handle = RunHandle.current();
+        }
+
+        @Override
+        protected Iterator<Map<String, Object>> openIterator() {
+            //rows are iterated after the loader returns, so the handle of the run is bound again
+            RunHandle previousHandle = RunHandle.bind(handle);
+            try {
+                return new ResultSetIterator(reportQuery, parentBand, query, params, handle);
+            } catch (SQLException e) {
+                throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+            } finally {
+                RunHandle.bind(previousHandle);
+            }
+        }
+    }
+
+    /**
+     * Iterator over the open result set of the streamed query. It is closed when all rows are read,
+     * or by the run if the iteration is not finished.
+     */
+    protected class ResultSetIterator implements Iterator<Map<String, Object>>, Closeable {
+        protected final ReportQuery reportQuery;
+        protected final BandData parentBand;
+        protected final RunHandle handle;
+        protected RunConnection runConnection;
+        protected Connection connection;
+        protected ResultSet resultSet;
+        protected OutputMapping mapping;
+        protected Object[] values;
+        protected Map<String, Object> nextRow;
+        protected boolean closed;
+
+        public ResultSetIterator(ReportQuery reportQuery, BandData parentBand, String query, Object[] params, RunHandle handle) throws SQLException {
+            this.reportQuery = reportQuery;
+            this.parentBand = parentBand;
+            this.handle = handle;
+
+            QueryRunner runner = createQueryRunner(reportQuery);
+            runConnection = getRunConnection(parentBand);
+            try {
+                if (runConnection != null) {
+                    synchronized (runConnection) {
+                        connection = runConnection.getConnection();
+                        resultSet = runner.open(connection, query, params);
+                    }
+                } else {
+                    connection = getDataSource().getConnection();
+                    resultSet = runner.open(connection, query, params);
                 }
+                mapping = getOutputMapping(resultSet.getMetaData(), query);
+                values = new Object[mapping.getColumnCount()];
+            } catch (SQLException e) {
+                closeQuietly();
+                throw e;
+            }
 
-                private void setCaseSensitiveSynonym(String columnName, OutputValue outputValue) {
-                    Matcher matcher = Pattern.compile("(?i)as\\s*(" + columnName + ")").matcher(pack.getQuery());
-                    if (matcher.find()) {
-                        outputValue.setSynonym(matcher.group(1));
+            if (handle != null) {
+                handle.addResource(this);
+            } else if (parentBand != null) {
+                parentBand.addResource(this);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextRow == null && !closed) {
+                try {
+                    if (handle != null) {
+                        handle.checkCancelled();
                     }
+                    boolean fetched;
+                    if (runConnection != null) {
+                        synchronized (runConnection) {
+                            fetched = fetchRow();
+                        }
+                    } else {
+                        fetched = fetchRow();
+                    }
+                    if (!fetched) {
+                        closeQuietly();
+                    }
+                } catch (SQLException e) {
+                    closeQuietly();
+                    throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+                } catch (RuntimeException e) {
+                    closeQuietly();
+                    throw e;
                 }
-            });
-        } catch (DataLoadingException e) {
-            throw e;
-        } catch (Throwable e) {
-            throw new DataLoadingException(String.format("An error occurred while loading data for data set [%s]", reportQuery.getName()), e);
+            }
+            return nextRow != null;
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map<String, Object> row = nextRow;
+            nextRow = null;
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        protected boolean fetchRow() throws SQLException {
+            if (!resultSet.next()) {
+                return false;
+            }
+            for (int columnIndex = 0; columnIndex < values.length; columnIndex++) {
+                values[columnIndex] = convertOutputValue(resultSet.getObject(columnIndex + 1));
+            }
+            nextRow = mapping.createRow(values);
+            return true;
         }
 
-        return fillOutputData(resList, outputValues);
+        @Override
+        public void close() throws IOException {
+            closeQuietly();
+        }
+
+        protected void closeQuietly() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (handle != null) {
+                handle.removeResource(this);
+            } else if (parentBand != null) {
+                parentBand.removeResource(this);
+            }
+
+            if (runConnection != null) {
+                synchronized (runConnection) {
+                    closeResultSet();
+                }
+            } else {
+                closeResultSet();
+                DbUtils.closeQuietly(connection);
+            }
+        }
+
+        protected void closeResultSet() {
+            if (resultSet != null) {
+                Statement statement = null;
+                try {
+                    statement = resultSet.getStatement();
+                } catch (SQLException e) {
+                    //result set is closed anyway
+                }
+                DbUtils.closeQuietly(null, statement, resultSet);
+            }
+        }
     }
 
-    protected List runQuery(ReportQuery reportQuery, String queryString, Object[] params, ResultSetHandler<List> handler) throws SQLException {
-        QueryRunner runner = new QueryRunner(getDataSource());
-        return runner.query(queryString, params, handler);
+    /**
+     * Keys of output values and indexes of columns which values are put by these keys.
+     * Column labels are kept to check that the mapping fits the result set.
+     */
+    protected static class OutputMapping {
+        protected final String[] columnLabels;
+        protected final String[] keys;
+        protected final int[] columnIndexes;
+        protected final int capacity;
+
+        public OutputMapping(List<OutputValue> outputValues) {
+            List<String> keys = new ArrayList<String>();
+            List<Integer> columnIndexes = new ArrayList<Integer>();
+            columnLabels = new String[outputValues.size()];
+            for (int i = 0; i < outputValues.size(); i++) {
+                OutputValue outputValue = outputValues.get(i);
+                columnLabels[i] = outputValue.getValueName();
+                keys.add(outputValue.getValueName());
+                columnIndexes.add(i);
+                if (StringUtils.isNotBlank(outputValue.getSynonym())) {
+                    keys.add(outputValue.getSynonym());
+                    columnIndexes.add(i);
+                }
+            }
+
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.columnIndexes = new int[columnIndexes.size()];
+            for (int i = 0; i < this.columnIndexes.length; i++) {
+                this.columnIndexes[i] = columnIndexes.get(i);
+            }
+            this.capacity = (int) (this.keys.length / 0.75f) + 1;
+        }
+
+        public int getColumnCount() {
+            return columnLabels.length;
+        }
+
+        public boolean matches(ResultSetMetaData metaData) throws SQLException {
+            if (metaData.getColumnCount() != columnLabels.length) {
+                return false;
+            }
+            for (int i = 0; i < columnLabels.length; i++) {
+                if (!columnLabels[i].equals(metaData.getColumnLabel(i + 1))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Map<String, Object> createRow(Object[] values) {
+            Map<String, Object> row = new HashMap<String, Object>(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                row.put(keys[i], values[columnIndexes[i]]);
+            }
+            return row;
+        }
     }
 
-    public DataSource getDataSource() {
-        return dataSource;
+    /**
+     * Connection shared by the queries of one report run. Connection settings are restored when it is released.
+     */
+    protected class RunConnection implements Closeable {
+        protected final Connection connection;
+        protected final boolean autoCommit;
+        protected final boolean readOnly;
+        protected final int isolation;
+        protected final PreparedStatementCache statementCache;
+
+        public RunConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.autoCommit = connection.getAutoCommit();
+            this.readOnly = connection.isReadOnly();
+            this.isolation = connection.getTransactionIsolation();
+            this.statementCache = statementCacheSize > 0 ? new PreparedStatementCache(connection, statementCacheSize) : null;
+
+            try {
+                if (runConnectionReadOnly) {
+                    connection.setReadOnly(true);
+                }
+                if (runConnectionIsolation != null) {
+                    connection.setAutoCommit(false);
+                    connection.setTransactionIsolation(runConnectionIsolation);
+                }
+            } catch (SQLException e) {
+                DbUtils.closeQuietly(connection);
+                throw e;
+            }
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        public PreparedStatementCache getStatementCache() {
+            return statementCache;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            synchronized (runConnections) {
+                runConnections.values().remove(this);
+            }
+
+            try {
+                if (statementCache != null) {
+                    statementCache.close();
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(autoCommit);
+                }
+                connection.setTransactionIsolation(isolation);
+                connection.setReadOnly(readOnly);
+            } catch (SQLException e) {
+                throw new IOException("An error occurred while releasing connection of the report run", e);
+            } finally {
+                DbUtils.closeQuietly(connection);
+            }
+        }
     }
 }
\ No newline at end of file
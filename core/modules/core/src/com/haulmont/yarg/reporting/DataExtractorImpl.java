@@ -17,44 +17,141 @@
 package com.haulmont.yarg.reporting;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Multimap;
 import com.haulmont.yarg.exception.DataLoadingException;
+import com.haulmont.yarg.exception.ReportCancelledException;
+import com.haulmont.yarg.exception.ReportingException;
 import com.haulmont.yarg.exception.ValidationException;
+import com.haulmont.yarg.loaders.LazyRows;
+import com.haulmont.yarg.loaders.ReportBatchDataLoader;
+import com.haulmont.yarg.loaders.ReportCacheableDataLoader;
 import com.haulmont.yarg.loaders.ReportDataLoader;
 import com.haulmont.yarg.loaders.factory.ReportLoaderFactory;
+import com.haulmont.yarg.loaders.impl.json.JsonMap;
 import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.BandDataCursor;
 import com.haulmont.yarg.structure.Report;
 import com.haulmont.yarg.structure.ReportBand;
 import com.haulmont.yarg.structure.ReportQuery;
+import com.haulmont.yarg.structure.SpillingBandList;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DataExtractorImpl implements DataExtractor {
+    /**
+     * Query additional parameter which enables batch loading of the band for all sibling parent bands at once.
+     * Value describes link fields, example: "id=orderId" - parent band field "id" is linked with query output field "orderId".
+     */
+    public static final String BATCH_LINK_PARAM = "batchLink";
+
     protected static final Map<String, Object> EMPTY_MAP = Collections.unmodifiableMap(new HashMap<String, Object>());
 
     protected ReportLoaderFactory loaderFactory;
 
     protected boolean putEmptyRowIfNoDataSelected = true;
 
+    protected boolean streamFirstLevelBands = false;
+
+    protected int streamingChunkSize = 100;
+
+    protected Executor pipelineExecutor;
+
+    protected int pipelineQueueSize = 100;
+
+    protected boolean compactBandData = false;
+
+    protected int spillThreshold = 0;
+
+    protected File spillDirectory;
+
+    protected int maxBatchSize = 1000;
+
+    protected boolean memoizeQueryResults = false;
+
+    protected boolean copyMemoizedResults = true;
+
+    //results of the queries loaded during report run, by root band of the run
+    protected final Map<BandData, Map<Object, List<Map<String, Object>>>> memoizedResults =
+            Collections.synchronizedMap(new WeakHashMap<BandData, Map<Object, List<Map<String, Object>>>>());
+
     public DataExtractorImpl(ReportLoaderFactory loaderFactory) {
         Preconditions.checkNotNull(loaderFactory, "\"loaderFactory\" parameter can not be null");
         this.loaderFactory = loaderFactory;
     }
 
     public void extractData(Report report, Map<String, Object> params, BandData rootBand) {
-        List<Map<String, Object>> rootBandData = getBandData(report.getRootBand(), null, params);
+        //queries of the root band have no parent band, so they take run handle from the thread,
+        //every run gets a handle to let loaders share resources (e.g. connection) between root and other queries
+        if (rootBand.getRunHandle() != null) {
+            extractBands(report, params, rootBand);
+            return;
+        }
+
+        rootBand.setRunHandle(new RunHandle());
+        try {
+            extractBands(report, params, rootBand);
+        } finally {
+            //nobody else releases resources of the run which is started here,
+            //lazily loaded bands use them until resources of the root band are released
+            if (!hasLazyBands(report)) {
+                rootBand.getRunHandle().releaseResources();
+            }
+        }
+    }
+
+    protected boolean hasLazyBands(Report report) {
+        return report.getRootBand().getChildren() != null && (streamFirstLevelBands || pipelineExecutor != null);
+    }
+
+    protected void extractBands(Report report, Map<String, Object> params, BandData rootBand) {
+        List<Map<String, Object>> rootBandData;
+        RunHandle previousHandle = RunHandle.bind(rootBand.getRunHandle());
+        try {
+            rootBandData = getBandData(report.getRootBand(), null, params);
+        } finally {
+            RunHandle.bind(previousHandle);
+        }
         if (CollectionUtils.isNotEmpty(rootBandData)) {
             rootBand.getData().putAll(rootBandData.get(0));
         }
 
         List<ReportBand> firstLevelBands = report.getRootBand().getChildren();
-        if (firstLevelBands != null) {
+        if (hasLazyBands(report)) {
+            PipelinedBandsCursor previousCursor = null;
             for (ReportBand definition : firstLevelBands) {
-                List<BandData> bands = createBands(definition, rootBand, params);
-                rootBand.addChildren(bands);
+                BandDataCursor cursor = createBandsCursor(definition, rootBand, params);
+                rootBand.addChildrenCursor(definition.getName(), cursor);
                 rootBand.getFirstLevelBandDefinitionNames().add(definition.getName());
+
+                //bands are loaded one by one in order of definitions
+                if (cursor instanceof PipelinedBandsCursor) {
+                    if (previousCursor == null) {
+                        ((PipelinedBandsCursor) cursor).start();
+                    } else {
+                        previousCursor.setNextCursor((PipelinedBandsCursor) cursor);
+                    }
+                    previousCursor = (PipelinedBandsCursor) cursor;
+                }
+            }
+        } else if (firstLevelBands != null) {
+            try {
+                List<Callable<List<BandData>>> tasks = new ArrayList<Callable<List<BandData>>>();
+                for (ReportBand definition : firstLevelBands) {
+                    tasks.add(createBandsTask(definition, rootBand, params));
+                }
+
+                List<List<BandData>> bands = runTasks(tasks);
+                for (int i = 0; i < firstLevelBands.size(); i++) {
+                    rootBand.addChildren(bands.get(i));
+                    rootBand.getFirstLevelBandDefinitionNames().add(firstLevelBands.get(i).getName());
+                }
+            } finally {
+                //streamed bands use memoized results until the root band is released
+                memoizedResults.remove(rootBand);
             }
         }
     }
@@ -67,28 +164,249 @@ public class DataExtractorImpl implements DataExtractor {
         return putEmptyRowIfNoDataSelected;
     }
 
+    /**
+     * If enabled, first level bands are not loaded during extraction. They are loaded by chunks when formatter iterates them
+     * using BandData.getChildrenCursor, and are not kept in the root band after that.
+     * Formatters which access children bands directly get them fully loaded, as usual.
+     * Streamed bands are not available after rendering, so output name pattern should not refer to them.
+     */
+    public void setStreamFirstLevelBands(boolean streamFirstLevelBands) {
+        this.streamFirstLevelBands = streamFirstLevelBands;
+    }
+
+    public boolean getStreamFirstLevelBands() {
+        return streamFirstLevelBands;
+    }
+
+    /**
+     * If set, first level bands are streamed (see {@link #setStreamFirstLevelBands(boolean)}) and loaded in background
+     * using the given executor, so formatter renders loaded bands while the next ones are loading.
+     * Loaded bands are passed to formatter through a bounded queue, so loading is suspended if formatter is slower.
+     * Suspended loading does not hold executor threads, so formatter can read bands in any order.
+     * Formatters get bands of one definition as soon as they all are loaded (BandData.getChildrenByName),
+     * or one by one (BandData.getChildrenCursor).
+     */
+    public void setPipelineExecutor(Executor pipelineExecutor) {
+        this.pipelineExecutor = pipelineExecutor;
+    }
+
+    public Executor getPipelineExecutor() {
+        return pipelineExecutor;
+    }
+
+    /**
+     * Count of first level bands which can be loaded in pipeline mode but not taken by formatter yet
+     */
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        Preconditions.checkArgument(pipelineQueueSize > 0, "\"pipelineQueueSize\" should be positive");
+        this.pipelineQueueSize = pipelineQueueSize;
+    }
+
+    public int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+
+    /**
+     * Count of first level band rows which are loaded (with their children) at once in streaming mode
+     */
+    public void setStreamingChunkSize(int streamingChunkSize) {
+        Preconditions.checkArgument(streamingChunkSize > 0, "\"streamingChunkSize\" should be positive");
+        this.streamingChunkSize = streamingChunkSize;
+    }
+
+    public int getStreamingChunkSize() {
+        return streamingChunkSize;
+    }
+
+    /**
+     * If enabled, rows of bands with the same name share one column schema and keep their values in arrays.
+     * Band data is still available as a mutable map.
+     * Only rows which are plain {@link HashMap} instances are compacted, rows of other map types
+     * (e.g. json objects, which resolve nested paths, or subclasses of HashMap) are kept as is. Disabled by default.
+     */
+    public void setCompactBandData(boolean compactBandData) {
+        this.compactBandData = compactBandData;
+    }
+
+    public boolean getCompactBandData() {
+        return compactBandData;
+    }
+
+    /**
+     * If positive, bands without children are kept on heap only up to this count of siblings,
+     * other bands are written to a temporary file and read back on access (see SpillingBandList).
+     * 0 (default) disables spilling.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        Preconditions.checkArgument(spillThreshold >= 0, "\"spillThreshold\" should not be negative");
+        this.spillThreshold = spillThreshold;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Directory for temporary files of spilled bands, default temporary directory is used if not set
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Maximum count of distinct link values of parent bands loaded by one batch query, 1000 by default.
+     * Parent bands are split into several batches if needed, so in-lists do not exceed limits of the database
+     * (e.g. 1000 elements in Oracle) and all batches except the last one have the same query text.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "\"maxBatchSize\" should be positive");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * If enabled, results of the queries are kept during report run, so identical queries
+     * (with the same resolved query text and parameter values) are loaded once.
+     * It helps if child band query does not depend on the parent band, e.g. uses only report parameters.
+     * Only results of loaders which implement ReportCacheableDataLoader are memoized.
+     */
+    public void setMemoizeQueryResults(boolean memoizeQueryResults) {
+        this.memoizeQueryResults = memoizeQueryResults;
+    }
+
+    public boolean getMemoizeQueryResults() {
+        return memoizeQueryResults;
+    }
+
+    /**
+     * If enabled (by default), memoized rows are copied on each read, so bands do not share row maps.
+     * Disable it only if rows are not modified, for example if bands have the only query.
+     */
+    public void setCopyMemoizedResults(boolean copyMemoizedResults) {
+        this.copyMemoizedResults = copyMemoizedResults;
+    }
+
+    public boolean getCopyMemoizedResults() {
+        return copyMemoizedResults;
+    }
+
+    protected BandDataCursor createBandsCursor(ReportBand definition, BandData parentBand, Map<String, Object> params) {
+        StreamingBandsCursor cursor = new StreamingBandsCursor(definition, parentBand, params);
+        return pipelineExecutor != null ? new PipelinedBandsCursor(definition, cursor) : cursor;
+    }
+
     protected List<BandData> createBands(ReportBand definition, BandData parentBand, Map<String, Object> params) {
         List<Map<String, Object>> outputData = getBandData(definition, parentBand, params);
         return createBandsList(definition, parentBand, outputData, params);
     }
 
     protected List<BandData> createBandsList(ReportBand definition, BandData parentBand, List<Map<String, Object>> outputData, Map<String, Object> params) {
-        List<BandData> bandsList = new ArrayList<BandData>();
+        List<BandData> bandsList;
+        if (spillThreshold > 0 && outputData.size() > spillThreshold && CollectionUtils.isEmpty(definition.getChildren())) {
+            bandsList = new SpillingBandList(definition.getName(), parentBand, definition.getBandOrientation(), spillThreshold, spillDirectory);
+        } else {
+            bandsList = new ArrayList<BandData>();
+        }
+        RunHandle handle = parentBand.getRunHandle();
         for (Map<String, Object> data : outputData) {
+            if (handle != null) {
+                handle.checkCancelled();
+            }
             BandData band = new BandData(definition.getName(), parentBand, definition.getBandOrientation());
-            band.setData(data);
-            Collection<ReportBand> childrenBandDefinitions = definition.getChildren();
-            if (childrenBandDefinitions != null) {
+            band.setData(compactBandData(band, data));
+            bandsList.add(band);
+        }
+
+        List<ReportBand> childrenBandDefinitions = definition.getChildren();
+        if (childrenBandDefinitions != null && !bandsList.isEmpty()) {
+            List<ReportBand> batchDefinitions = new ArrayList<ReportBand>();
+            List<Callable<List<List<Map<String, Object>>>>> batchTasks = new ArrayList<Callable<List<List<Map<String, Object>>>>>();
+            for (ReportBand childDefinition : childrenBandDefinitions) {
+                if (isBatchLoadingSupported(childDefinition)) {
+                    batchDefinitions.add(childDefinition);
+                    batchTasks.add(createBatchBandDataTask(childDefinition, bandsList, params));
+                }
+            }
+
+            Map<ReportBand, List<List<Map<String, Object>>>> batchData = new HashMap<ReportBand, List<List<Map<String, Object>>>>();
+            List<List<List<Map<String, Object>>>> batchResults = runTasks(batchTasks);
+            for (int i = 0; i < batchDefinitions.size(); i++) {
+                batchData.put(batchDefinitions.get(i), batchResults.get(i));
+            }
+
+            for (int i = 0; i < bandsList.size(); i++) {
+                BandData band = bandsList.get(i);
+                List<Callable<List<BandData>>> tasks = new ArrayList<Callable<List<BandData>>>();
                 for (ReportBand childDefinition : childrenBandDefinitions) {
-                    List<BandData> childBands = createBands(childDefinition, band, params);
+                    if (batchData.containsKey(childDefinition)) {
+                        tasks.add(createBandsListTask(childDefinition, band, batchData.get(childDefinition).get(i), params));
+                    } else {
+                        tasks.add(createBandsTask(childDefinition, band, params));
+                    }
+                }
+
+                for (List<BandData> childBands : runTasks(tasks)) {
                     band.addChildren(childBands);
                 }
             }
-            bandsList.add(band);
         }
         return bandsList;
     }
 
+    protected Callable<List<BandData>> createBandsTask(final ReportBand definition, final BandData parentBand, final Map<String, Object> params) {
+        return new Callable<List<BandData>>() {
+            @Override
+            public List<BandData> call() throws Exception {
+                return createBands(definition, parentBand, params);
+            }
+        };
+    }
+
+    protected Callable<List<BandData>> createBandsListTask(final ReportBand definition, final BandData parentBand,
+                                                           final List<Map<String, Object>> outputData, final Map<String, Object> params) {
+        return new Callable<List<BandData>>() {
+            @Override
+            public List<BandData> call() throws Exception {
+                return createBandsList(definition, parentBand, outputData, params);
+            }
+        };
+    }
+
+    protected Callable<List<List<Map<String, Object>>>> createBatchBandDataTask(final ReportBand definition, final List<BandData> parentBands,
+                                                                                final Map<String, Object> params) {
+        return new Callable<List<List<Map<String, Object>>>>() {
+            @Override
+            public List<List<Map<String, Object>>> call() throws Exception {
+                return getBatchBandData(definition, parentBands, params);
+            }
+        };
+    }
+
+    /**
+     * Runs tasks loading independent sibling bands. Default implementation runs them one by one in the current thread.
+     * @return results in the same order as tasks
+     */
+    protected <T> List<T> runTasks(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        for (Callable<T> task : tasks) {
+            try {
+                results.add(task.call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DataLoadingException("An error occurred while loading data", e);
+            }
+        }
+        return results;
+    }
+
     protected List<Map<String, Object>> getBandData(ReportBand band, BandData parentBand, Map<String, Object> params) {
         Collection<ReportQuery> reportQueries = band.getReportQueries();
         if (CollectionUtils.isEmpty(reportQueries)) {
@@ -98,21 +416,6 @@ public class DataExtractorImpl implements DataExtractor {
         List<Map<String, Object>> result = null;
         if (!isEmptyBand(parentBand)) {
             result = getQueriesResult(band, parentBand, params, reportQueries);
-
-            if (result != null) {
-                //add input params to band
-                //todo eude - probably we need to get rid of the following logic, because leads to errors while logging report
-                for (Map<String, Object> map : result) {
-                    map = new HashMap<>(map);
-                    for (Map.Entry<String, Object> paramEntry : params.entrySet()) {
-                        if ( !(paramEntry.getValue() instanceof Collection)
-                                && !(paramEntry.getValue() instanceof  Map)
-                                && !(paramEntry.getValue() instanceof Multimap)) {
-                            map.put(paramEntry.getKey(), paramEntry.getValue());
-                        }
-                    }
-                }
-            }
         }
 
         if (result == null) {
@@ -141,26 +444,7 @@ public class DataExtractorImpl implements DataExtractor {
             List<Map<String, Object>> currentQueryData = getQueryData(parentBand, band, reportQuery, params);
             String link = reportQuery.getLinkParameterName();
             if (StringUtils.isNotBlank(link)) {
-                for (Map<String, Object> currentRow : currentQueryData) {
-                    Object linkObj = currentRow.get(link);
-                    if (linkObj != null) {
-                        for (Map<String, Object> resultRow : result) {
-                            Object linkObj2 = resultRow.get(link);
-                            if (linkObj2 != null) {
-                                if (linkObj.equals(linkObj2)) {
-                                    resultRow.putAll(currentRow);
-                                    break;
-                                }
-                            } else {
-                                throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]." +
-                                        " Query defines link parameter [%s] but result does not contain such field. Query [%s].", band.getName(), link, firstReportQuery.getName()));
-                            }
-                        }
-                    } else {
-                        throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]." +
-                                " Query defines link parameter [%s] but result does not contain such field. Query [%s].", band.getName(), link, reportQuery.getName()));
-                    }
-                }
+                mergeLinkedQueryData(band, firstReportQuery, reportQuery, result, currentQueryData);
             } else {
                 for (int j = 0; (j < result.size()) && (j < currentQueryData.size()); j++) {
                     result.get(j).putAll(currentQueryData.get(j));
@@ -171,18 +455,542 @@ public class DataExtractorImpl implements DataExtractor {
         return result;
     }
 
+    /**
+     * Band can be loaded in batch mode if it has the only query, the query defines batch link
+     * and its loader implements ReportBatchDataLoader
+     */
+    protected boolean isBatchLoadingSupported(ReportBand band) {
+        List<ReportQuery> reportQueries = band.getReportQueries();
+        if (reportQueries == null || reportQueries.size() != 1) {
+            return false;
+        }
+
+        ReportQuery reportQuery = reportQueries.get(0);
+        return reportQuery.getAdditionalParams().get(BATCH_LINK_PARAM) != null
+                && loaderFactory.createDataLoader(reportQuery.getLoaderType()) instanceof ReportBatchDataLoader;
+    }
+
+    /**
+     * Loads data for all sibling parent bands with the single query and splits it by batch link fields
+     * @return list of rows for each parent band, in the same order as parent bands
+     */
+    protected List<List<Map<String, Object>>> getBatchBandData(ReportBand band, List<BandData> parentBands, Map<String, Object> params) {
+        ReportQuery reportQuery = band.getReportQueries().get(0);
+        String[][] link = parseBatchLink(band, reportQuery);
+        String[] parentFields = link[0];
+        String[] childFields = link[1];
+
+        List<BandData> notEmptyParentBands = new ArrayList<BandData>();
+        for (BandData parentBand : parentBands) {
+            if (!isEmptyBand(parentBand)) {
+                notEmptyParentBands.add(parentBand);
+            }
+        }
+
+        Map<Object, List<Map<String, Object>>> rowsByLink = new HashMap<Object, List<Map<String, Object>>>();
+        for (List<BandData> batch : splitBatches(notEmptyParentBands, parentFields)) {
+            List<Map<String, Object>> rows = getBatchQueryData(batch, band, reportQuery, params);
+            if (rows != null) {
+                for (Map<String, Object> row : rows) {
+                    for (String childField : childFields) {
+                        if (!row.containsKey(childField)) {
+                            throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]." +
+                                    " Query defines batch link field [%s] but result does not contain such field. Query [%s].", band.getName(), childField, reportQuery.getName()));
+                        }
+                    }
+                    Object key = getLinkKey(row, childFields);
+                    List<Map<String, Object>> linkedRows = rowsByLink.get(key);
+                    if (linkedRows == null) {
+                        linkedRows = new ArrayList<Map<String, Object>>();
+                        rowsByLink.put(key, linkedRows);
+                    }
+                    linkedRows.add(row);
+                }
+            }
+        }
+
+        List<List<Map<String, Object>>> result = new ArrayList<List<Map<String, Object>>>(parentBands.size());
+        Set<Object> usedKeys = new HashSet<Object>();
+        for (BandData parentBand : parentBands) {
+            List<Map<String, Object>> parentResult = Collections.emptyList();
+            if (!isEmptyBand(parentBand)) {
+                Object key = getLinkKey(parentBand.getData(), parentFields);
+                List<Map<String, Object>> linkedRows = rowsByLink.get(key);
+                if (linkedRows != null) {
+                    if (usedKeys.add(key)) {
+                        parentResult = linkedRows;
+                    } else {//several parent bands have the same link values - each band should get its own row maps
+                        parentResult = new ArrayList<Map<String, Object>>(linkedRows.size());
+                        for (Map<String, Object> row : linkedRows) {
+                            parentResult.add(new HashMap<String, Object>(row));
+                        }
+                    }
+                }
+            }
+
+            if (getPutEmptyRowIfNoDataSelected() && CollectionUtils.isEmpty(parentResult)) {
+                parentResult = new ArrayList<Map<String, Object>>();
+                parentResult.add(EMPTY_MAP);
+            }
+            result.add(parentResult);
+        }
+
+        return result;
+    }
+
+    /**
+     * Splits parent bands into batches with at most {@link #maxBatchSize} distinct link values.
+     * Parent bands with the same link value are put into the same batch, so their rows are loaded once.
+     */
+    protected List<List<BandData>> splitBatches(List<BandData> parentBands, String[] parentFields) {
+        List<List<BandData>> batches = new ArrayList<List<BandData>>();
+        Map<Object, List<BandData>> batchesByKey = new HashMap<Object, List<BandData>>();
+        List<BandData> currentBatch = null;
+        int currentBatchKeys = 0;
+        for (BandData parentBand : parentBands) {
+            Object key = getLinkKey(parentBand.getData(), parentFields);
+            List<BandData> batch = batchesByKey.get(key);
+            if (batch == null) {
+                if (currentBatch == null || currentBatchKeys == maxBatchSize) {
+                    currentBatch = new ArrayList<BandData>();
+                    currentBatchKeys = 0;
+                    batches.add(currentBatch);
+                }
+                batch = currentBatch;
+                batchesByKey.put(key, batch);
+                currentBatchKeys++;
+            }
+            batch.add(parentBand);
+        }
+        return batches;
+    }
+
+    /**
+     * Batch link format is "parentField=childField", several pairs are separated by comma.
+     * If parent and child fields have the same name, it can be written once: "id".
+     */
+    protected String[][] parseBatchLink(ReportBand band, ReportQuery reportQuery) {
+        String[] pairs = StringUtils.split(String.valueOf(reportQuery.getAdditionalParams().get(BATCH_LINK_PARAM)), ',');
+        if (pairs == null || pairs.length == 0) {
+            throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]." +
+                    " Batch link is empty. Query [%s].", band.getName(), reportQuery.getName()));
+        }
+
+        String[] parentFields = new String[pairs.length];
+        String[] childFields = new String[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            String pair = pairs[i];
+            parentFields[i] = StringUtils.trim(StringUtils.contains(pair, '=') ? StringUtils.substringBefore(pair, "=") : pair);
+            childFields[i] = StringUtils.trim(StringUtils.contains(pair, '=') ? StringUtils.substringAfter(pair, "=") : pair);
+        }
+        return new String[][]{parentFields, childFields};
+    }
+
+    protected Object getLinkKey(Map<String, Object> data, String[] fields) {
+        if (fields.length == 1) {
+            return data.get(fields[0]);
+        }
+
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = data.get(fields[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Joins rows of the query to the result rows using hash index by link fields.
+     * Link parameter may contain several fields separated by comma. Each row of the query is merged into the first result row with the same link values.
+     */
+    protected void mergeLinkedQueryData(ReportBand band, ReportQuery firstReportQuery, ReportQuery reportQuery,
+                                        List<Map<String, Object>> result, List<Map<String, Object>> currentQueryData) {
+        if (currentQueryData.isEmpty()) {
+            return;
+        }
+
+        String[] linkFields = StringUtils.stripAll(StringUtils.split(reportQuery.getLinkParameterName(), ','));
+
+        //index of the first result row without link field: the sequential scan would fail on it, so hash join fails too
+        int firstRowWithoutLink = -1;
+        String missingLinkField = null;
+        Map<Object, Integer> resultIndex = new HashMap<Object, Integer>(result.size() * 2);
+        for (int i = 0; i < result.size(); i++) {
+            Map<String, Object> resultRow = result.get(i);
+            String missingField = findMissingLinkField(resultRow, linkFields);
+            if (missingField != null) {
+                firstRowWithoutLink = i;
+                missingLinkField = missingField;
+                break;
+            }
+
+            Object key = getLinkKey(resultRow, linkFields);
+            if (!resultIndex.containsKey(key)) {
+                resultIndex.put(key, i);
+            }
+        }
+
+        for (Map<String, Object> currentRow : currentQueryData) {
+            String missingField = findMissingLinkField(currentRow, linkFields);
+            if (missingField != null) {
+                throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]." +
+                        " Query defines link parameter [%s] but result does not contain such field. Query [%s].", band.getName(), missingField, reportQuery.getName()));
+            }
+
+            Integer resultRowIndex = resultIndex.get(getLinkKey(currentRow, linkFields));
+            if (resultRowIndex != null) {
+                result.get(resultRowIndex).putAll(currentRow);
+            } else if (firstRowWithoutLink >= 0) {
+                throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]." +
+                        " Query defines link parameter [%s] but result does not contain such field. Query [%s].", band.getName(), missingLinkField, firstReportQuery.getName()));
+            }
+        }
+    }
+
+    protected String findMissingLinkField(Map<String, Object> row, String[] linkFields) {
+        for (String linkField : linkFields) {
+            if (row.get(linkField) == null) {
+                return linkField;
+            }
+        }
+        return null;
+    }
+
+    protected Map<String, Object> compactBandData(BandData band, Map<String, Object> data) {
+        //only plain rows are compacted, specialized maps like JsonMap resolve keys on their own
+        if (!compactBandData || data == EMPTY_MAP || data == null || data.getClass() != HashMap.class) {
+            return data;
+        }
+        return band.getRowSchema(band.getName()).createRow(data);
+    }
+
     protected boolean isEmptyBand(BandData parentBand) {
         return parentBand != null && parentBand.getData() == EMPTY_MAP;
     }
 
     protected List<Map<String, Object>> getQueryData(BandData parentBand, ReportBand band, ReportQuery reportQuery, Map<String, Object> paramsMap) {
+        RunHandle handle = parentBand != null ? parentBand.getRunHandle() : RunHandle.current();
+        //loaders take run handle from the thread
+        RunHandle previousHandle = RunHandle.bind(handle);
         try {
+            if (handle != null) {
+                handle.checkCancelled();
+            }
             ReportDataLoader dataLoader = loaderFactory.createDataLoader(reportQuery.getLoaderType());
+            if (memoizeQueryResults && parentBand != null && dataLoader instanceof ReportCacheableDataLoader) {
+                return getMemoizedQueryData((ReportCacheableDataLoader) dataLoader, parentBand, reportQuery, paramsMap);
+            }
             return dataLoader.loadData(reportQuery, parentBand, paramsMap);
         } catch (ValidationException e) {
             throw e;
+        } catch (ReportCancelledException e) {
+            throw e;
+        } catch (Exception e) {
+            throw createDataLoadingException(handle, band, reportQuery, e);
+        } finally {
+            RunHandle.bind(previousHandle);
+        }
+    }
+
+    //failure of the cancelled run is usually caused by cancellation, e.g. query timeout
+    protected ReportingException createDataLoadingException(RunHandle handle, ReportBand band, ReportQuery reportQuery, Exception e) {
+        if (handle != null && handle.isCancelled()) {
+            return new ReportCancelledException(String.format("Report run has been cancelled while loading data for band [%s] and query [%s].",
+                    band.getName(), reportQuery.getName()), e);
+        }
+        return new DataLoadingException(String.format("An error occurred while loading data for band [%s] and query [%s].", band.getName(), reportQuery.getName()), e);
+    }
+
+    protected List<Map<String, Object>> getMemoizedQueryData(ReportCacheableDataLoader dataLoader, BandData parentBand,
+                                                             ReportQuery reportQuery, Map<String, Object> paramsMap) {
+        Object loaderKey = dataLoader.createCacheKey(reportQuery, parentBand, paramsMap);
+        if (loaderKey == null) {
+            return dataLoader.loadData(reportQuery, parentBand, paramsMap);
+        }
+
+        BandData rootBand = parentBand;
+        while (rootBand.getParentBand() != null) {
+            rootBand = rootBand.getParentBand();
+        }
+
+        Map<Object, List<Map<String, Object>>> runResults;
+        synchronized (memoizedResults) {
+            runResults = memoizedResults.get(rootBand);
+            if (runResults == null) {
+                runResults = new ConcurrentHashMap<Object, List<Map<String, Object>>>();
+                memoizedResults.put(rootBand, runResults);
+            }
+        }
+
+        Object key = Arrays.asList(reportQuery.getLoaderType(), loaderKey);
+        List<Map<String, Object>> rows = runResults.get(key);
+        if (rows == null) {
+            rows = dataLoader.loadData(reportQuery, parentBand, paramsMap, loaderKey);
+            if (rows instanceof LazyRows) {
+                //memoized rows are kept in memory anyway, and lazy rows may be iterated only once
+                rows = new ArrayList<Map<String, Object>>(rows);
+            }
+            runResults.put(key, copyMemoizedResults ? copyRows(rows) : rows);
+            return rows;
+        }
+        return copyMemoizedResults ? copyRows(rows) : new ArrayList<Map<String, Object>>(rows);
+    }
+
+    protected List<Map<String, Object>> copyRows(List<Map<String, Object>> rows) {
+        List<Map<String, Object>> copy = new ArrayList<Map<String, Object>>(rows.size());
+        for (Map<String, Object> row : rows) {
+            //json map resolves nested paths, so it should be kept
+            copy.add(row instanceof JsonMap ? new JsonMap(new HashMap<String, Object>(row)) : new HashMap<String, Object>(row));
+        }
+        return copy;
+    }
+
+    protected List<Map<String, Object>> getBatchQueryData(List<BandData> parentBands, ReportBand band, ReportQuery reportQuery, Map<String, Object> paramsMap) {
+        RunHandle handle = parentBands.get(0).getRunHandle();
+        RunHandle previousHandle = RunHandle.bind(handle);
+        try {
+            if (handle != null) {
+                handle.checkCancelled();
+            }
+            ReportBatchDataLoader dataLoader = (ReportBatchDataLoader) loaderFactory.createDataLoader(reportQuery.getLoaderType());
+            return dataLoader.loadBatchData(reportQuery, parentBands, paramsMap);
+        } catch (ValidationException e) {
+            throw e;
+        } catch (ReportCancelledException e) {
+            throw e;
         } catch (Exception e) {
-            throw new DataLoadingException(String.format("An error occurred while loading data for band [%s] and query [%s].", band.getName(), reportQuery.getName()), e);
+            throw createDataLoadingException(handle, band, reportQuery, e);
+        } finally {
+            RunHandle.bind(previousHandle);
+        }
+    }
+
+    /**
+     * Loads rows of the band definition on demand, by chunks of streamingChunkSize rows with their children bands
+     */
+    protected class StreamingBandsCursor implements BandDataCursor {
+        protected final ReportBand definition;
+        protected final BandData parentBand;
+        protected final Map<String, Object> params;
+
+        //rows are iterated, not copied, so lazily loaded rows are not kept in memory
+        protected Iterator<Map<String, Object>> rows;
+        protected LinkedList<BandData> loadedBands = new LinkedList<BandData>();
+
+        public StreamingBandsCursor(ReportBand definition, BandData parentBand, Map<String, Object> params) {
+            this.definition = definition;
+            this.parentBand = parentBand;
+            this.params = params;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (loadedBands.isEmpty()) {
+                loadNextChunk();
+            }
+
+            boolean hasNext = !loadedBands.isEmpty();
+            if (!hasNext) {
+                close();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public BandData next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return loadedBands.removeFirst();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            rows = Collections.<Map<String, Object>>emptyList().iterator();
+            loadedBands.clear();
+        }
+
+        protected void loadNextChunk() {
+            if (rows == null) {
+                rows = getBandData(definition, parentBand, params).iterator();
+            }
+
+            List<Map<String, Object>> chunk = new ArrayList<Map<String, Object>>();
+            while (chunk.size() < streamingChunkSize && rows.hasNext()) {
+                chunk.add(rows.next());
+            }
+
+            if (!chunk.isEmpty()) {
+                loadedBands.addAll(createBandsList(definition, parentBand, chunk, params));
+            }
+        }
+    }
+
+    /**
+     * Takes bands from the source cursor in background and passes them through a bounded queue.
+     * When all bands are loaded, starts loading of the next cursor.
+     * Loading task does not wait for the formatter if the queue is full: it ends and is resumed when the formatter
+     * takes a band. So the executor threads are not blocked by the cursors which are not read yet, and the formatter can
+     * read cursors in any order, even if the executor has a single thread.
+     */
+    protected class PipelinedBandsCursor implements BandDataCursor {
+        protected final ReportBand definition;
+        protected final BandDataCursor source;
+        protected final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(pipelineQueueSize);
+        protected final AtomicBoolean started = new AtomicBoolean();
+        //set while the loading task is scheduled or running, only one task loads bands at a time
+        protected final AtomicBoolean loading = new AtomicBoolean();
+        protected final Object end = new Object();
+
+        protected volatile boolean closed;
+        protected volatile boolean finished;
+        protected volatile PipelinedBandsCursor nextCursor;
+        protected Object nextElement;
+        //element taken from the source which did not fit into the queue, accessed by the loading task only
+        protected Object pendingElement;
+
+        public PipelinedBandsCursor(ReportBand definition, BandDataCursor source) {
+            this.definition = definition;
+            this.source = source;
+        }
+
+        public void setNextCursor(PipelinedBandsCursor nextCursor) {
+            this.nextCursor = nextCursor;
+        }
+
+        public void start() {
+            if (started.compareAndSet(false, true)) {
+                resume();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+
+            start();
+            if (nextElement == null) {
+                try {
+                    nextElement = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DataLoadingException(String.format("Loading of band [%s] has been interrupted", definition.getName()), e);
+                }
+                resume();
+            }
+
+            if (nextElement == end) {
+                close();
+                return false;
+            } else if (nextElement instanceof Throwable) {
+                Throwable error = (Throwable) nextElement;
+                close();
+                if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                } else if (error instanceof Error) {
+                    throw (Error) error;
+                }
+                throw new DataLoadingException(String.format("An error occurred while loading data for band [%s]", definition.getName()), error);
+            }
+            return true;
+        }
+
+        @Override
+        public BandData next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            BandData band = (BandData) nextElement;
+            nextElement = null;
+            return band;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+            //source is closed by the loading task
+            if (started.get()) {
+                resume();
+            } else if (started.compareAndSet(false, true)) {
+                source.close();
+                finished = true;
+            }
+        }
+
+        /**
+         * Schedules the loading task if it is not running and there is room in the queue (or the cursor is closed)
+         */
+        protected void resume() {
+            if (finished || !(closed || queue.remainingCapacity() > 0) || !loading.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                pipelineExecutor.execute(this::load);
+            } catch (RejectedExecutionException e) {
+                loading.set(false);
+                //the error is thrown to the formatter
+                queue.offer(new DataLoadingException(String.format("Could not start loading of band [%s]", definition.getName()), e));
+            }
+        }
+
+        protected void load() {
+            try {
+                while (!finished) {
+                    if (closed) {
+                        finish(false);
+                    } else {
+                        if (pendingElement == null) {
+                            pendingElement = takeFromSource();
+                        }
+                        if (!queue.offer(pendingElement)) {
+                            //resumed when the formatter takes a band
+                            break;
+                        }
+                        Object element = pendingElement;
+                        pendingElement = null;
+                        if (element == end || element instanceof Throwable) {
+                            finish(true);
+                        }
+                    }
+                }
+            } finally {
+                loading.set(false);
+            }
+            //formatter might have taken bands before the task is marked as not running
+            resume();
+        }
+
+        protected Object takeFromSource() {
+            try {
+                return source.hasNext() ? source.next() : end;
+            } catch (Throwable e) {
+                return e;
+            }
+        }
+
+        protected void finish(boolean startNextCursor) {
+            finished = true;
+            pendingElement = null;
+            source.close();
+
+            PipelinedBandsCursor cursor = nextCursor;
+            if (startNextCursor && cursor != null) {
+                cursor.start();
+            }
         }
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.haulmont.yarg.reporting;
+
+import com.google.common.base.Preconditions;
+import com.haulmont.yarg.exception.DataLoadingException;
+import com.haulmont.yarg.loaders.factory.ReportLoaderFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Data extractor which loads independent sibling bands (and their subtrees) in parallel using the given executor.
+ * Order of children bands is the same as in sequential mode.
+ * Data loaders used by the report should be thread safe.
+ *
+ * The current thread also runs tasks which have not been started by the executor yet,
+ * so nested extraction does not deadlock even if the executor has no free threads.
+ */
+public class ParallelDataExtractorImpl extends DataExtractorImpl {
+    protected Executor executor;
+
+    public ParallelDataExtractorImpl(ReportLoaderFactory loaderFactory, Executor executor) {
+        super(loaderFactory);
+        Preconditions.checkNotNull(executor, "\"executor\" parameter can not be null");
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    protected <T> List<T> runTasks(List<Callable<T>> tasks) {
+        if (tasks.size() < 2) {
+            return super.runTasks(tasks);
+        }
+
+        List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<T>(task));
+        }
+
+        try {
+            for (int i = 1; i < futures.size(); i++) {
+                try {
+                    executor.execute(futures.get(i));
+                } catch (RejectedExecutionException e) {
+                    //the task will be run in the current thread
+                }
+            }
+
+            List<T> results = new ArrayList<T>(futures.size());
+            for (FutureTask<T> future : futures) {
+                future.run();//does nothing if the task has been already started by the executor
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DataLoadingException("An error occurred while loading data", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataLoadingException("Data loading has been interrupted", e);
+        } finally {
+            for (FutureTask<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
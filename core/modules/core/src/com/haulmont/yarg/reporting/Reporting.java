@@ -36,6 +36,9 @@ import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,6 +53,12 @@ public class Reporting implements ReportingAPI {
 
     protected ObjectToStringConverter objectToStringConverter = new ObjectToStringConverterImpl();
 
+    protected Executor extractionExecutor;
+
+    protected Executor formattingExecutor;
+
+    protected Executor officeExecutor;
+
     protected Logger logger = LoggerFactory.getLogger(getClass());
 
     public void setFormatterFactory(ReportFormatterFactory formatterFactory) {
@@ -71,48 +80,217 @@ public class Reporting implements ReportingAPI {
         this.objectToStringConverter = objectToStringConverter;
     }
 
+    /**
+     * Executor for data extraction in async mode. It mostly waits for database, so it can have many threads.
+     * If not set, dedicated pool with twice the count of processors threads is created on the first async run.
+     */
+    public synchronized void setExtractionExecutor(Executor extractionExecutor) {
+        this.extractionExecutor = extractionExecutor;
+    }
+
+    public synchronized Executor getExtractionExecutor() {
+        if (extractionExecutor == null) {
+            extractionExecutor = ReportExecutors.newFixedPool("yarg-extraction", 2 * Runtime.getRuntime().availableProcessors());
+        }
+        return extractionExecutor;
+    }
+
+    /**
+     * Executor for document rendering in async mode, usually sized by count of processors.
+     * If not set, dedicated pool with the count of processors threads is created on the first async run.
+     */
+    public synchronized void setFormattingExecutor(Executor formattingExecutor) {
+        this.formattingExecutor = formattingExecutor;
+    }
+
+    public synchronized Executor getFormattingExecutor() {
+        if (formattingExecutor == null) {
+            formattingExecutor = ReportExecutors.newFixedPool("yarg-formatting", Runtime.getRuntime().availableProcessors());
+        }
+        return formattingExecutor;
+    }
+
+    /**
+     * Executor for rendering documents which are processed or converted by office (doc, odt, pdf output of xls/docx/xlsx)
+     * in async mode. Such tasks mostly wait for office, so they should not take formatting threads.
+     * Extraction executor is used if not set.
+     */
+    public synchronized void setOfficeExecutor(Executor officeExecutor) {
+        this.officeExecutor = officeExecutor;
+    }
+
+    public synchronized Executor getOfficeExecutor() {
+        return officeExecutor != null ? officeExecutor : getExtractionExecutor();
+    }
+
     @Override
     public ReportOutputDocument runReport(RunParams runParams, OutputStream outputStream) {
-        return runReport(runParams.report, runParams.reportTemplate, runParams.outputType, runParams.params, outputStream);
+        return runReport(runParams.report, runParams.reportTemplate, runParams.outputType, runParams.params, outputStream,
+                createRunHandle(runParams));
+    }
+
+    /**
+     * The run is cancelled when the returned future is cancelled
+     */
+    @Override
+    public CompletableFuture<ReportOutputDocument> runReportAsync(RunParams runParams, OutputStream outputStream) {
+        RunHandle handle = createAsyncRunHandle(runParams);
+        return handle.cancelWith(runReportAsync(runParams.report, runParams.reportTemplate, runParams.outputType, runParams.params,
+                outputStream, handle));
+    }
+
+    /**
+     * The run is cancelled when the returned future is cancelled
+     */
+    @Override
+    public CompletableFuture<ReportOutputDocument> runReportAsync(RunParams runParams) {
+        RunHandle handle = createAsyncRunHandle(runParams);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        return handle.cancelWith(runReportAsync(runParams.report, runParams.reportTemplate, runParams.outputType, runParams.params,
+                result, handle)
+                .thenApply(reportOutputDocument -> {
+                    reportOutputDocument.setContent(result.toByteArray());
+                    return reportOutputDocument;
+                }));
     }
 
     @Override
     public ReportOutputDocument runReport(RunParams runParams) {
         ByteArrayOutputStream result = new ByteArrayOutputStream();
-        ReportOutputDocument reportOutputDocument = runReport(runParams.report, runParams.reportTemplate, runParams.outputType, runParams.params, result);
+        ReportOutputDocument reportOutputDocument = runReport(runParams.report, runParams.reportTemplate, runParams.outputType, runParams.params, result,
+                createRunHandle(runParams));
         reportOutputDocument.setContent(result.toByteArray());
         return reportOutputDocument;
     }
 
+    /**
+     * @return handle of the run from run params, with deadline if the timeout is set
+     */
+    protected RunHandle createRunHandle(RunParams runParams) {
+        RunHandle handle = runParams.handle;
+        if (runParams.timeout > 0) {
+            if (handle == null) {
+                handle = new RunHandle();
+            }
+            handle.setTimeout(runParams.timeout);
+        }
+        return handle;
+    }
+
+    //async run always has a handle, so it can be cancelled through the future
+    protected RunHandle createAsyncRunHandle(RunParams runParams) {
+        RunHandle handle = createRunHandle(runParams);
+        return handle != null ? handle : new RunHandle();
+    }
+
     protected ReportOutputDocument runReport(Report report, ReportTemplate reportTemplate, ReportOutputType outputType, Map<String, Object> params, OutputStream outputStream) {
+        return runReport(report, reportTemplate, outputType, params, outputStream, null);
+    }
+
+    protected ReportOutputDocument runReport(Report report, ReportTemplate reportTemplate, ReportOutputType outputType, Map<String, Object> params,
+                                             OutputStream outputStream, RunHandle handle) {
         try {
-            Preconditions.checkNotNull(report, "\"report\" parameter can not be null");
-            Preconditions.checkNotNull(reportTemplate, "\"reportTemplate\" can not be null");
-            Preconditions.checkNotNull(params, "\"params\" can not be null");
-            Preconditions.checkNotNull(outputStream, "\"outputStream\" can not be null");
+            Map<String, Object> handledParams = prepareParameters(report, reportTemplate, params, outputStream);
+            BandData rootBand = loadBandData(report, handledParams, handle);
+            return formatReport(report, reportTemplate, outputType, handledParams, outputStream, rootBand);
+        } catch (ReportingException e) {
+            handleReportingException(report, params, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts data using extraction executor, then renders document using formatting executor
+     * (or office executor if the formatter uses office).
+     */
+    protected CompletableFuture<ReportOutputDocument> runReportAsync(Report report, ReportTemplate reportTemplate, ReportOutputType outputType,
+                                                                    Map<String, Object> params, OutputStream outputStream) {
+        return runReportAsync(report, reportTemplate, outputType, params, outputStream, null);
+    }
 
-            Map<String, Object> handledParams = handleParameters(report, params);
-            logReport("Started report [%s] with parameters [%s]", report, handledParams);
+    protected CompletableFuture<ReportOutputDocument> runReportAsync(Report report, ReportTemplate reportTemplate, ReportOutputType outputType,
+                                                                    Map<String, Object> params, OutputStream outputStream, RunHandle handle) {
+        Map<String, Object> handledParams;
+        try {
+            handledParams = prepareParameters(report, reportTemplate, params, outputStream);
+        } catch (RuntimeException e) {
+            //validation errors are reported by the future as well as errors of the run
+            if (e instanceof ReportingException) {
+                handleReportingException(report, params, (ReportingException) e);
+            }
+            CompletableFuture<ReportOutputDocument> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        ReportOutputType finalOutputType = (outputType != null) ? outputType : reportTemplate.getOutputType();
+        Executor executor = isOfficeFormatting(reportTemplate, finalOutputType) ? getOfficeExecutor() : getFormattingExecutor();
+        return CompletableFuture
+                .supplyAsync(() -> loadBandData(report, handledParams, handle), getExtractionExecutor())
+                .thenApplyAsync(rootBand -> formatReport(report, reportTemplate, outputType, handledParams, outputStream, rootBand), executor)
+                .whenComplete((document, throwable) -> {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    if (cause instanceof ReportingException) {
+                        handleReportingException(report, params, (ReportingException) cause);
+                    }
+                });
+    }
+
+    protected Map<String, Object> prepareParameters(Report report, ReportTemplate reportTemplate, Map<String, Object> params, OutputStream outputStream) {
+        Preconditions.checkNotNull(report, "\"report\" parameter can not be null");
+        Preconditions.checkNotNull(reportTemplate, "\"reportTemplate\" can not be null");
+        Preconditions.checkNotNull(params, "\"params\" can not be null");
+        Preconditions.checkNotNull(outputStream, "\"outputStream\" can not be null");
+
+        Map<String, Object> handledParams = handleParameters(report, params);
+        logReport("Started report [%s] with parameters [%s]", report, handledParams);
+        return handledParams;
+    }
+
+    protected ReportOutputDocument formatReport(Report report, ReportTemplate reportTemplate, ReportOutputType outputType,
+                                                Map<String, Object> handledParams, OutputStream outputStream, BandData rootBand) {
+        try {
+            if (rootBand.getRunHandle() != null) {
+                rootBand.getRunHandle().checkCancelled();
+            }
 
             ReportOutputType finalOutputType = (outputType != null) ? outputType : reportTemplate.getOutputType();
-            BandData rootBand = loadBandData(report, handledParams);
             generateReport(report, reportTemplate, finalOutputType, outputStream, handledParams, rootBand);
 
             logReport("Finished report [%s] with parameters [%s]", report, handledParams);
 
             String outputName = resolveOutputFileName(report, reportTemplate, outputType, rootBand);
             return createReportOutputDocument(report, finalOutputType, outputName, rootBand);
-        } catch (ReportingException e) {
-            logReport("An error occurred while running report [%s] with parameters [%s].", report, params);
-            logException(e);
-            //validation exception is usually shown to clients, so probably there is no need to add report name there (to keep the original message)
-            if (!(e instanceof ValidationException)) {
-                e.setReportDetails(format(" Report name [%s]", report.getName()));
-            }
-            throw e;
+        } finally {
+            rootBand.releaseResources();
+        }
+    }
+
+    protected void handleReportingException(Report report, Map<String, Object> params, ReportingException e) {
+        logReport("An error occurred while running report [%s] with parameters [%s].", report, params);
+        logException(e);
+        //validation exception is usually shown to clients, so probably there is no need to add report name there (to keep the original message)
+        if (!(e instanceof ValidationException)) {
+            e.setReportDetails(format(" Report name [%s]", report.getName()));
         }
     }
 
+    /**
+     * @return true if the document is rendered or converted by office, so formatting mostly waits for it
+     */
+    protected boolean isOfficeFormatting(ReportTemplate reportTemplate, ReportOutputType outputType) {
+        if (reportTemplate.isCustom()) {
+            return false;
+        }
+
+        String extension = StringUtils.substringAfterLast(reportTemplate.getDocumentName(), ".");
+        if ("doc".equalsIgnoreCase(extension) || "odt".equalsIgnoreCase(extension)) {
+            return true;
+        }
+        return ReportOutputType.pdf.equals(outputType) && ("xls".equalsIgnoreCase(extension)
+                || "docx".equalsIgnoreCase(extension) || "xlsx".equalsIgnoreCase(extension) || "xlsm".equalsIgnoreCase(extension));
+    }
+
     protected void generateReport(Report report, ReportTemplate reportTemplate, ReportOutputType outputType,
                                   OutputStream outputStream, Map<String, Object> handledParams, BandData rootBand) {
         String extension = StringUtils.substringAfterLast(reportTemplate.getDocumentName(), ".");
@@ -131,12 +309,23 @@ public class Reporting implements ReportingAPI {
     }
 
     protected BandData loadBandData(Report report, Map<String, Object> handledParams) {
+        return loadBandData(report, handledParams, null);
+    }
+
+    protected BandData loadBandData(Report report, Map<String, Object> handledParams, RunHandle handle) {
         BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+        rootBand.setRunHandle(handle);
         rootBand.setData(new HashMap<String, Object>(handledParams));
         rootBand.addReportFieldFormats(report.getReportFieldFormats());
         rootBand.setFirstLevelBandDefinitionNames(new HashSet<String>());
 
-        dataExtractor.extractData(report, handledParams, rootBand);
+        try {
+            dataExtractor.extractData(report, handledParams, rootBand);
+        } catch (RuntimeException e) {
+            //resources of the run are released by formatReport, which is not called in this case
+            rootBand.releaseResources();
+            throw e;
+        }
         return rootBand;
     }
 
@@ -20,6 +20,8 @@ import com.google.common.base.Preconditions;
 import com.haulmont.yarg.structure.BandOrientation;
 import com.haulmont.yarg.structure.ReportBand;
 
+import java.util.Map;
+
 public class BandBuilder {
     protected ReportBandImpl bandDefinition = createBand();
 
@@ -41,6 +43,11 @@ public class BandBuilder {
         return this;
     }
 
+    public BandBuilder query(String name, String script, String loaderType, String linkParameterName, Map<String, Object> additionalParams) {
+        bandDefinition.reportQueries.add(createReportQuery(name, script, loaderType, linkParameterName, additionalParams));
+        return this;
+    }
+
     public BandBuilder name(String name) {
         Preconditions.checkNotNull(name, "\"name\" parameter can not be null");
         bandDefinition.name = name;
@@ -71,6 +78,10 @@ public class BandBuilder {
     }
 
     protected ReportQueryImpl createReportQuery(String name, String script, String loaderType, String linkParameterName) {
-        return new ReportQueryImpl(name, script, loaderType, linkParameterName, null);
+        return createReportQuery(name, script, loaderType, linkParameterName, null);
+    }
+
+    protected ReportQueryImpl createReportQuery(String name, String script, String loaderType, String linkParameterName, Map<String, Object> additionalParams) {
+        return new ReportQueryImpl(name, script, loaderType, linkParameterName, additionalParams);
     }
 }
@@ -42,7 +42,7 @@ public class ReportQueryImpl implements ReportQuery {
         this.name = name;
         this.script = script;
         this.loaderType = loaderType;
-        this.additionalParams = additionalParams;
+        this.additionalParams = additionalParams != null ? additionalParams : Collections.<String, Object>emptyMap();
         this.linkParameterName = linkParameterName;
         this.processTemplate = processTemplate;
         validate();
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.haulmont.yarg.util.db;
+
+import java.util.Arrays;
+
+/**
+ * Query parameter which is bound as a single JDBC array,
+ * created with <code>Connection.createArrayOf</code>.
+ *
+ * @see QueryRunner#fillStatement(java.sql.PreparedStatement, Object[], int[])
+ */
+public class ArrayParameter {
+
+    protected final String typeName;
+    protected final Object[] elements;
+
+    /**
+     * @param typeName The SQL name of the type of array elements, e.g. VARCHAR.
+     * @param elements The elements of the array.
+     */
+    public ArrayParameter(String typeName, Object[] elements) {
+        this.typeName = typeName;
+        this.elements = elements;
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public Object[] getElements() {
+        return elements;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ArrayParameter that = (ArrayParameter) o;
+        return typeName.equals(that.typeName) && Arrays.equals(elements, that.elements);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * typeName.hashCode() + Arrays.hashCode(elements);
+    }
+
+    @Override
+    public String toString() {
+        return typeName + Arrays.toString(elements);
+    }
+}
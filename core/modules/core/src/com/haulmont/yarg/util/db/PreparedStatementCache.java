@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.haulmont.yarg.util.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of <code>PreparedStatement</code>s of one <code>Connection</code>.
+ * Least recently used statements are closed when the cache is full.
+ * Statements are taken from the cache with {@link #take(Object)} and returned with {@link #release(Object, PreparedStatement)},
+ * so the statement is not closed while it is used. This class is thread safe.
+ *
+ * @see QueryRunner#setStatementCache(PreparedStatementCache)
+ */
+public class PreparedStatementCache {
+
+    protected final Connection connection;
+    protected final int maxSize;
+    protected final Map<Object, PreparedStatement> statements;
+
+    /**
+     * @param connection The connection which statements are cached.
+     * @param maxSize The count of statements kept by the cache.
+     */
+    public PreparedStatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<Object, PreparedStatement>(16, 0.75f, true);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Removes the statement from the cache.
+     *
+     * @param key The key of the statement, e.g. SQL text.
+     * @return The statement or <code>null</code> if there is no statement with this key.
+     */
+    public synchronized PreparedStatement take(Object key) {
+        return statements.remove(key);
+    }
+
+    /**
+     * Returns the statement to the cache. Parameters of the statement are cleared.
+     * The statement is closed if it can not be reused.
+     *
+     * @param key The key of the statement.
+     * @param stmt The statement.
+     */
+    public synchronized void release(Object key, PreparedStatement stmt) {
+        try {
+            stmt.clearParameters();
+        } catch (SQLException e) {
+            DbUtils.closeQuietly(stmt);
+            return;
+        }
+
+        PreparedStatement previousStmt = statements.put(key, stmt);
+        if (previousStmt != null && previousStmt != stmt) {
+            DbUtils.closeQuietly(previousStmt);
+        }
+
+        Iterator<PreparedStatement> iterator = statements.values().iterator();
+        while (statements.size() > maxSize && iterator.hasNext()) {
+            DbUtils.closeQuietly(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * Closes all cached statements. The connection is not closed.
+     */
+    public synchronized void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            DbUtils.closeQuietly(stmt);
+        }
+        statements.clear();
+    }
+}
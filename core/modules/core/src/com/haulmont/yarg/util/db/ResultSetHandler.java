@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 Haulmont
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.haulmont.yarg.util.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Implementations of this interface convert ResultSets into other objects.
+ */
+public interface ResultSetHandler<T> {
+
+    /**
+     * Turn the <code>ResultSet</code> into an Object.
+     *
+     * @param rs The <code>ResultSet</code> to handle.  It has not been touched
+     * before being passed to this method.
+     *
+     * @return An Object initialized with <code>ResultSet</code> data. It is
+     * legal for implementations to return <code>null</code> if the
+     * <code>ResultSet</code> contained 0 rows.
+     *
+     * @throws java.sql.SQLException if a database access error occurs
+     */
+    public T handle(ResultSet rs) throws SQLException;
+
+}
\ No newline at end of file
@@ -17,15 +17,108 @@
 package com.haulmont.yarg.util.groovy;
 
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovyShell;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Evaluates groovy scripts with cache of compiled script classes, keyed by script text.
+ * Each evaluation creates new instance of the script class with its own binding.
+ * Classes are compiled by one shared class loader, evicted classes are removed from it, so they can be unloaded.
+ */
 public class DefaultScriptingImpl implements Scripting {
+    protected final ScriptClassLoader classLoader;
+    protected final AtomicInteger scriptCounter = new AtomicInteger();
+
+    protected int compiledScriptsCacheSize = 500;
+    protected final Map<String, Class<?>> compiledScripts = new LinkedHashMap<String, Class<?>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Class<?>> eldest) {
+            if (size() > compiledScriptsCacheSize) {
+                classLoader.removeScriptClass(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public DefaultScriptingImpl() {
+        this(Thread.currentThread().getContextClassLoader());
+    }
+
+    /**
+     * @param parentClassLoader class loader of the classes used by scripts
+     */
+    public DefaultScriptingImpl(ClassLoader parentClassLoader) {
+        this.classLoader = new ScriptClassLoader(parentClassLoader);
+    }
+
     @Override
     public <T> T evaluateGroovy(String script, Map<String, Object> params) {
         Binding binding = new Binding(params);
-        GroovyShell shell = new GroovyShell(Thread.currentThread().getContextClassLoader(), binding);
-        return (T) shell.evaluate(script);
+        return (T) InvokerHelper.createScript(getScriptClass(script), binding).run();
+    }
+
+    protected Class<?> getScriptClass(String script) {
+        synchronized (compiledScripts) {
+            Class<?> scriptClass = compiledScripts.get(script);
+            if (scriptClass != null) {
+                return scriptClass;
+            }
+        }
+
+        //script is compiled out of lock, so the same script can be compiled twice by concurrent calls
+        Class<?> scriptClass = compileScript(script);
+        if (compiledScriptsCacheSize > 0) {
+            synchronized (compiledScripts) {
+                Class<?> cachedClass = compiledScripts.get(script);
+                if (cachedClass != null) {
+                    classLoader.removeScriptClass(scriptClass);
+                    return cachedClass;
+                }
+                compiledScripts.put(script, scriptClass);
+            }
+        } else {
+            classLoader.removeScriptClass(scriptClass);
+        }
+        return scriptClass;
+    }
+
+    protected Class<?> compileScript(String script) {
+        String scriptName = "Script" + scriptCounter.incrementAndGet() + ".groovy";
+        GroovyCodeSource codeSource = new GroovyCodeSource(script, scriptName, GroovyShell.DEFAULT_CODE_BASE);
+        return classLoader.parseClass(codeSource, false);
+    }
+
+    /**
+     * @param compiledScriptsCacheSize count of compiled script classes kept by the cache, 0 disables caching
+     */
+    public void setCompiledScriptsCacheSize(int compiledScriptsCacheSize) {
+        this.compiledScriptsCacheSize = compiledScriptsCacheSize;
+    }
+
+    public int getCompiledScriptsCacheSize() {
+        return compiledScriptsCacheSize;
+    }
+
+    public int getCompiledScriptsCount() {
+        synchronized (compiledScripts) {
+            return compiledScripts.size();
+        }
+    }
+
+    protected static class ScriptClassLoader extends GroovyClassLoader {
+        public ScriptClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        public void removeScriptClass(Class<?> scriptClass) {
+            removeClassCacheEntry(scriptClass.getName());
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ import com.haulmont.yarg.loaders.factory.DefaultLoaderFactory;
 import com.haulmont.yarg.PropertiesSqlLoaderFactory;
 import com.haulmont.yarg.reporting.ReportOutputDocument;
 import com.haulmont.yarg.reporting.Reporting;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.reporting.RunParams;
 import com.haulmont.yarg.structure.Report;
 import com.haulmont.yarg.structure.ReportOutputType;
@@ -19,6 +20,13 @@ import utils.TestDatabase;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author degtyarjov
@@ -52,6 +60,62 @@ public class ReportingTest {
         Assert.assertEquals("myFileName.xls", reportOutputDocument.getDocumentName());
     }
 
+    @Test
+    public void testAsyncReporting() throws Exception {
+        ExecutorService extractionExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService formattingExecutor = Executors.newSingleThreadExecutor();
+        try {
+            reporting.setExtractionExecutor(extractionExecutor);
+            reporting.setFormattingExecutor(formattingExecutor);
+            Report report = createReport(false, null);
+
+            ReportOutputDocument reportOutputDocument = reporting.runReportAsync(new RunParams(report).templateCode("XLS")).get();
+            Assert.assertEquals("myFileName.xls", reportOutputDocument.getDocumentName());
+            Assert.assertTrue(reportOutputDocument.getContent().length > 0);
+        } finally {
+            extractionExecutor.shutdownNow();
+            formattingExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelAsyncReporting() throws Exception {
+        ExecutorService extractionExecutor = Executors.newSingleThreadExecutor();
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            reporting.setExtractionExecutor(extractionExecutor);
+            //run is queued behind the blocking task
+            extractionExecutor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return latch.await(10, TimeUnit.SECONDS);
+                }
+            });
+            RunHandle handle = new RunHandle();
+            CompletableFuture<ReportOutputDocument> future = reporting.runReportAsync(
+                    new RunParams(createReport(false, null)).templateCode("XLS").handle(handle));
+            Assert.assertFalse(handle.isCancelled());
+            future.cancel(true);
+            Assert.assertTrue(handle.isCancelled());
+        } finally {
+            latch.countDown();
+            extractionExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncReportingWithInvalidParameters() throws Exception {
+        Report report = createReport(true, null);
+        CompletableFuture<ReportOutputDocument> future = reporting.runReportAsync(new RunParams(report).templateCode("XLS"));
+        Assert.assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            Assert.fail("Should fail without required parameter");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
     @Test
     public void testReportWithDefaultParameters() throws Exception {
         ReportOutputDocument reportOutputDocument = null;
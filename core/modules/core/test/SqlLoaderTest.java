@@ -1,11 +1,34 @@
+import com.haulmont.yarg.loaders.factory.DefaultLoaderFactory;
+import com.haulmont.yarg.loaders.impl.AbstractDbDataLoader;
+import com.haulmont.yarg.loaders.impl.CachingDataLoader;
+import com.haulmont.yarg.loaders.impl.ScopedParameters;
+import com.haulmont.yarg.loaders.impl.LazyRowList;
 import com.haulmont.yarg.loaders.impl.SqlDataLoader;
+import com.haulmont.yarg.reporting.DataExtractorImpl;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.BandOrientation;
+import com.haulmont.yarg.structure.Report;
+import com.haulmont.yarg.structure.ReportQuery;
+import com.haulmont.yarg.structure.impl.BandBuilder;
+import com.haulmont.yarg.structure.impl.ReportBuilder;
 import com.haulmont.yarg.structure.impl.ReportQueryImpl;
+import com.haulmont.yarg.util.db.PreparedStatementCache;
+import com.haulmont.yarg.util.db.QueryRunner;
+import com.haulmont.yarg.util.db.ResultSetHandler;
 import junit.framework.Assert;
 import utils.TestDatabase;
 import org.junit.Test;
 
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.*;
 
 /**
@@ -60,6 +83,31 @@ public class SqlLoaderTest {
         }
     }
 
+    @Test
+    public void testArrayBoundListParameter() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(testDatabase.getDs());
+            sqlDataLoader.setArrayParameterSql(AbstractDbDataLoader.HSQLDB_ARRAY_PARAMETER_SQL);
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            ReportQueryImpl query = new ReportQueryImpl("", "select login, password from user where login in ${login} order by login", "sql", null, null);
+
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("login", Arrays.asList("login1", "login3"));
+            List<Map<String, Object>> result = sqlDataLoader.loadData(query, rootBand, params);
+            Assert.assertEquals(2, result.size());
+            Assert.assertEquals("login3", result.get(1).get("LOGIN"));
+
+            params.put("login", new String[]{"login1", "login2", "login3"});
+            Assert.assertEquals(3, sqlDataLoader.loadData(query, rootBand, params).size());
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
     @Test
     public void testFunctionParameter() throws Exception {
         TestDatabase testDatabase = new TestDatabase();
@@ -96,6 +144,431 @@ public class SqlLoaderTest {
         }
     }
 
+    @Test
+    public void testBatchLoading() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(testDatabase.getDs());
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            List<BandData> parentBands = new ArrayList<BandData>();
+            for (String login : new String[]{"login1", "login3", "login1"}) {
+                BandData parentBand = new BandData("User", rootBand, BandOrientation.HORIZONTAL);
+                parentBand.setData(new HashMap<String, Object>(Collections.singletonMap("login", login)));
+                parentBands.add(parentBand);
+            }
+
+            List<Map<String, Object>> result = sqlDataLoader.loadBatchData(
+                    new ReportQueryImpl("", "select login, password from user where login in ${User.login} order by login", "sql", null, null),
+                    parentBands, new HashMap<String, Object>());
+            printResult(result);
+            Assert.assertEquals(2, result.size());
+            Assert.assertEquals("login1", result.get(0).get("LOGIN"));
+            Assert.assertEquals("login3", result.get(1).get("LOGIN"));
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testCachingLoader() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            final long[] time = {0};
+            final int[] preparedQueries = {0};
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(testDatabase.getDs()) {
+                @Override
+                protected QueryPack prepareQuery(String query, BandData parentBand, Map<String, Object> reportParams) {
+                    preparedQueries[0]++;
+                    return super.prepareQuery(query, parentBand, reportParams);
+                }
+            };
+            CachingDataLoader cachingDataLoader = new CachingDataLoader(sqlDataLoader, 1000, 1) {
+                @Override
+                protected long currentTimeMillis() {
+                    return time[0];
+                }
+            };
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            String script = "select login, password from user where login = ${login}";
+            ReportQueryImpl cachedQuery = new ReportQueryImpl("", script, "sql", null,
+                    Collections.<String, Object>singletonMap(CachingDataLoader.CACHE_PARAM, true));
+            ReportQueryImpl query = new ReportQueryImpl("", script, "sql", null, null);
+
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("login", "login1");
+            List<Map<String, Object>> result = cachingDataLoader.loadData(cachedQuery, rootBand, params);
+            Assert.assertEquals(1, result.size());
+            result.get(0).put("LOGIN", "changed");
+
+            result = cachingDataLoader.loadData(cachedQuery, rootBand, params);
+            Assert.assertEquals("login1", result.get(0).get("LOGIN"));
+            Assert.assertEquals(1, cachingDataLoader.getHitCount());
+            Assert.assertEquals(1, cachingDataLoader.getMissCount());
+            //query prepared for the key is used to load data
+            Assert.assertEquals(2, preparedQueries[0]);
+
+            cachingDataLoader.loadData(query, rootBand, params);
+            Assert.assertEquals(1, cachingDataLoader.getMissCount());
+
+            time[0] = 1000;
+            cachingDataLoader.loadData(cachedQuery, rootBand, params);
+            Assert.assertEquals(1, cachingDataLoader.getHitCount());
+            Assert.assertEquals(2, cachingDataLoader.getMissCount());
+
+            params.put("login", "login2");
+            result = cachingDataLoader.loadData(cachedQuery, rootBand, params);
+            Assert.assertEquals("login2", result.get(0).get("LOGIN"));
+            Assert.assertEquals(3, cachingDataLoader.getMissCount());
+            Assert.assertEquals(1, cachingDataLoader.size());
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testScopedParameters() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            BandData outerUser = new BandData("User", rootBand);
+            outerUser.setData(Collections.<String, Object>singletonMap("login", "login1"));
+            BandData innerUser = new BandData("User", outerUser);
+            Map<String, Object> innerData = new HashMap<String, Object>();
+            innerData.put("login", "login2");
+            innerData.put("password", "password");
+            innerUser.setData(innerData);
+
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("User.login", "login3");
+            params.put("login", "login3");
+
+            //the farthest parent band wins, as before
+            Map<String, Object> scope = new ScopedParameters(params, null, innerUser);
+            Assert.assertEquals("login1", scope.get("User.login"));
+            Assert.assertEquals("password", scope.get("User.password"));
+            Assert.assertEquals("login3", scope.get("login"));
+            Assert.assertNull(scope.get("User.name"));
+            Assert.assertFalse(scope.containsKey("User.name"));
+            Assert.assertEquals(3, scope.size());
+
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(testDatabase.getDs());
+            List<Map<String, Object>> result = sqlDataLoader.loadData(
+                    new ReportQueryImpl("", "select login from user where login = ${User.login}", "sql", null, null), innerUser, params);
+            Assert.assertEquals(1, result.size());
+            Assert.assertEquals("login1", result.get(0).get("LOGIN"));
+
+            result = sqlDataLoader.loadData(
+                    new ReportQueryImpl("", "select login from user where login = ${login}", "sql", null, null), innerUser, params);
+            Assert.assertEquals("login3", result.get(0).get("LOGIN"));
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testStreamingMode() throws Exception {
+        final TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            final List<Connection> connections = new ArrayList<Connection>();
+            DataSource dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            Object result = method.invoke(testDatabase.getDs(), args);
+                            if (result instanceof Connection) {
+                                connections.add((Connection) result);
+                            }
+                            return result;
+                        }
+                    });
+            final List<QueryRunner> runners = new ArrayList<QueryRunner>();
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(dataSource) {
+                @Override
+                protected QueryRunner createQueryRunner(ReportQuery reportQuery) {
+                    QueryRunner runner = super.createQueryRunner(reportQuery);
+                    runners.add(runner);
+                    return runner;
+                }
+            };
+            sqlDataLoader.setFetchSize(50);
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            String script = "select login as \"Login\", password from user order by login";
+
+            List<Map<String, Object>> expected = sqlDataLoader.loadData(
+                    new ReportQueryImpl("", script, "sql", null, null), rootBand, Collections.<String, Object>emptyMap());
+            Assert.assertEquals(50, runners.get(0).getFetchSize());
+            Assert.assertFalse(runners.get(0).isForwardOnly());
+
+            Map<String, Object> additionalParams = new HashMap<String, Object>();
+            additionalParams.put(SqlDataLoader.STREAMING_PARAM, true);
+            additionalParams.put(SqlDataLoader.FETCH_SIZE_PARAM, "1");
+            List<Map<String, Object>> result = sqlDataLoader.loadData(
+                    new ReportQueryImpl("", script, "sql", null, additionalParams), rootBand, Collections.<String, Object>emptyMap());
+            //rows are not read until they are iterated
+            Assert.assertTrue(result instanceof LazyRowList);
+            Assert.assertEquals(1, runners.size());
+
+            Iterator<Map<String, Object>> iterator = result.iterator();
+            Assert.assertEquals(1, runners.get(1).getFetchSize());
+            Assert.assertTrue(runners.get(1).isForwardOnly());
+            Assert.assertEquals(expected.get(0), iterator.next());
+            Connection connection = connections.get(connections.size() - 1);
+            Assert.assertFalse(connection.isClosed());
+            while (iterator.hasNext()) {
+                iterator.next();
+            }
+            Assert.assertTrue(connection.isClosed());
+
+            //iteration which is not finished is closed with the resources of the run
+            result.iterator().next();
+            connection = connections.get(connections.size() - 1);
+            Assert.assertFalse(connection.isClosed());
+            rootBand.releaseResources();
+            Assert.assertTrue(connection.isClosed());
+
+            Assert.assertEquals(expected, result);
+            Assert.assertTrue(result.size() > 1);
+            Assert.assertNotNull(result.get(0).get("Login"));
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testRunScopedConnection() throws Exception {
+        final TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            final List<Connection> connections = new ArrayList<Connection>();
+            DataSource dataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{DataSource.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            Object result = method.invoke(testDatabase.getDs(), args);
+                            if (result instanceof Connection) {
+                                connections.add((Connection) result);
+                            }
+                            return result;
+                        }
+                    });
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(dataSource);
+            sqlDataLoader.setRunScopedConnection(true);
+            sqlDataLoader.setRunConnectionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            ReportQueryImpl query = new ReportQueryImpl("", "select login as \"login\" from user where login = ${User.login}", "sql", null, null);
+            for (String login : Arrays.asList("login1", "login2", "login3")) {
+                BandData user = new BandData("User", rootBand);
+                user.setData(Collections.<String, Object>singletonMap("login", login));
+                rootBand.addChild(user);
+
+                List<Map<String, Object>> result = sqlDataLoader.loadData(query, user, Collections.<String, Object>emptyMap());
+                Assert.assertEquals(login, result.get(0).get("login"));
+            }
+            Assert.assertEquals(1, connections.size());
+            Assert.assertFalse(connections.get(0).getAutoCommit());
+
+            rootBand.releaseResources();
+            Assert.assertTrue(connections.get(0).isClosed());
+
+            BandData anotherRootBand = new BandData(BandData.ROOT_BAND_NAME);
+            anotherRootBand.setData(Collections.<String, Object>singletonMap("login", "login1"));
+            sqlDataLoader.loadData(new ReportQueryImpl("", "select login from user where login = ${Root.login}", "sql", null, null),
+                    anotherRootBand, Collections.<String, Object>emptyMap());
+            Assert.assertEquals(2, connections.size());
+            anotherRootBand.releaseResources();
+
+            //queries of the root band have no parent band, they find the run by its handle
+            RunHandle handle = new RunHandle();
+            BandData runRootBand = new BandData(BandData.ROOT_BAND_NAME);
+            runRootBand.setData(Collections.<String, Object>emptyMap());
+            runRootBand.setRunHandle(handle);
+            RunHandle previousHandle = RunHandle.bind(handle);
+            try {
+                sqlDataLoader.loadData(new ReportQueryImpl("", "select login from user where login = 'login1'", "sql", null, null),
+                        null, Collections.<String, Object>emptyMap());
+            } finally {
+                RunHandle.bind(previousHandle);
+            }
+            BandData user = new BandData("User", runRootBand);
+            user.setData(Collections.<String, Object>singletonMap("login", "login2"));
+            runRootBand.addChild(user);
+            sqlDataLoader.loadData(query, user, Collections.<String, Object>emptyMap());
+            Assert.assertEquals(3, connections.size());
+
+            runRootBand.releaseResources();
+            Assert.assertTrue(connections.get(2).isClosed());
+
+            //extractor which starts the run releases its connection if bands are loaded eagerly
+            Report report = new ReportBuilder()
+                    .band(new BandBuilder()
+                            .name("User")
+                            .query("q1", "select login as \"login\" from user", "sql")
+                            .child(new BandBuilder()
+                                    .name("Login")
+                                    .query("q2", "select login as \"login\" from user where login = ${User.login}", "sql")
+                                    .build())
+                            .build())
+                    .build();
+            DataExtractorImpl dataExtractor = new DataExtractorImpl(new DefaultLoaderFactory().setSqlDataLoader(sqlDataLoader));
+            BandData extractedRootBand = new BandData(BandData.ROOT_BAND_NAME);
+            extractedRootBand.setData(new HashMap<String, Object>());
+            extractedRootBand.setFirstLevelBandDefinitionNames(new HashSet<String>());
+            dataExtractor.extractData(report, new HashMap<String, Object>(), extractedRootBand);
+            Assert.assertEquals(3, extractedRootBand.getChildrenByName("User").size());
+            Assert.assertEquals(4, connections.size());
+            Assert.assertTrue(connections.get(3).isClosed());
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testStatementCache() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        Connection connection = testDatabase.getDs().getConnection();
+        try {
+            final int[] preparedCount = {0};
+            QueryRunner runner = new QueryRunner() {
+                @Override
+                protected PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+                    preparedCount[0]++;
+                    return super.prepareStatement(conn, sql);
+                }
+            };
+            PreparedStatementCache statementCache = new PreparedStatementCache(connection, 1);
+            runner.setStatementCache(statementCache);
+            ResultSetHandler<String> handler = new ResultSetHandler<String>() {
+                @Override
+                public String handle(ResultSet rs) throws SQLException {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            };
+
+            String sql = "select login from user where login = ?";
+            Assert.assertEquals("login1", runner.query(connection, sql, new Object[]{"login1"}, handler));
+            Assert.assertEquals("login2", runner.query(connection, sql, new Object[]{"login2"}, handler));
+            Assert.assertEquals(1, preparedCount[0]);
+            Assert.assertEquals(1, statementCache.size());
+
+            Assert.assertEquals("passwd", runner.query(connection, "select password from user where login = ?", new Object[]{"login1"}, handler));
+            Assert.assertEquals(2, preparedCount[0]);
+            Assert.assertEquals(1, statementCache.size());
+
+            Assert.assertEquals("login3", runner.query(connection, sql, new Object[]{"login3"}, handler));
+            Assert.assertEquals(3, preparedCount[0]);
+
+            statementCache.close();
+            Assert.assertEquals(0, statementCache.size());
+        } finally {
+            connection.close();
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testOutputMapping() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            final int[] mappingsCount = {0};
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(testDatabase.getDs()) {
+                @Override
+                protected List<OutputValue> createOutputValues(ResultSetMetaData metaData, String query) throws SQLException {
+                    mappingsCount[0]++;
+                    return super.createOutputValues(metaData, query);
+                }
+            };
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            ReportQueryImpl query = new ReportQueryImpl("", "select login as Login, password from user where login = ${login}", "sql", null, null);
+
+            for (String login : Arrays.asList("login1", "login2", "login3")) {
+                List<Map<String, Object>> result = sqlDataLoader.loadData(query, rootBand, Collections.<String, Object>singletonMap("login", login));
+                Assert.assertEquals(1, result.size());
+                Assert.assertEquals(login, result.get(0).get("LOGIN"));
+                Assert.assertEquals(login, result.get(0).get("Login"));
+                Assert.assertEquals("passwd", result.get(0).get("PASSWORD"));
+                Assert.assertEquals(3, result.get(0).size());
+            }
+            Assert.assertEquals(1, mappingsCount[0]);
+
+            sqlDataLoader.loadData(new ReportQueryImpl("", "select login from user", "sql", null, null),
+                    rootBand, Collections.<String, Object>emptyMap());
+            Assert.assertEquals(2, mappingsCount[0]);
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
+    @Test
+    public void testChunkedLoading() throws Exception {
+        TestDatabase testDatabase = new TestDatabase();
+        testDatabase.setUpDatabase();
+
+        try {
+            final List<QueryRunner> runners = new ArrayList<QueryRunner>();
+            final List<Object> lastKeys = new ArrayList<Object>();
+            SqlDataLoader sqlDataLoader = new SqlDataLoader(testDatabase.getDs()) {
+                @Override
+                protected QueryRunner createQueryRunner(ReportQuery reportQuery) {
+                    QueryRunner runner = super.createQueryRunner(reportQuery);
+                    runners.add(runner);
+                    return runner;
+                }
+
+                @Override
+                protected List<Map<String, Object>> loadChunk(ReportQuery reportQuery, BandData parentBand, QueryPack pack, Object lastKey) throws SQLException {
+                    lastKeys.add(lastKey);
+                    return super.loadChunk(reportQuery, parentBand, pack, lastKey);
+                }
+            };
+            BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+            rootBand.setData(Collections.<String, Object>emptyMap());
+            Map<String, Object> additionalParams = new HashMap<String, Object>();
+            additionalParams.put(SqlDataLoader.CHUNK_KEY_PARAM, "login");
+            additionalParams.put(SqlDataLoader.CHUNK_SIZE_PARAM, 2);
+            ReportQueryImpl query = new ReportQueryImpl("", "select login, password from user where password = ${password}", "sql", null, additionalParams);
+
+            List<Map<String, Object>> result = sqlDataLoader.loadData(query, rootBand, Collections.<String, Object>singletonMap("password", "passwd"));
+            Assert.assertTrue(runners.isEmpty());
+
+            List<Object> logins = new ArrayList<Object>();
+            for (Map<String, Object> row : result) {
+                logins.add(row.get("LOGIN"));
+            }
+            Assert.assertEquals(Arrays.<Object>asList("login1", "login2", "login3"), logins);
+            Assert.assertEquals(Arrays.<Object>asList(null, "login2"), lastKeys);
+            Assert.assertEquals(2, runners.size());
+            Assert.assertEquals(2, runners.get(0).getMaxRows());
+
+            //each iteration loads rows again, random access loads them once
+            Assert.assertEquals(3, result.size());
+            Assert.assertEquals("login3", result.get(2).get("LOGIN"));
+            Assert.assertEquals(3, result.size());
+            Assert.assertEquals(4, runners.size());
+        } finally {
+            testDatabase.stop();
+        }
+    }
+
     private void printResult(List<Map<String, Object>> result) {
         for (Map<String, Object> stringObjectMap : result) {
             for (Map.Entry<String, Object> entry : stringObjectMap.entrySet()) {
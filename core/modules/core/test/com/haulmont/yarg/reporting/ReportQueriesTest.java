@@ -1,5 +1,6 @@
 package com.haulmont.yarg.reporting;
 
+import com.haulmont.yarg.exception.DataLoadingException;
 import com.haulmont.yarg.loaders.factory.DefaultLoaderFactory;
 import com.haulmont.yarg.loaders.impl.GroovyDataLoader;
 import com.haulmont.yarg.structure.BandData;
@@ -48,6 +49,52 @@ public class ReportQueriesTest {
 
     }
 
+    @Test
+    public void testMultiColumnDataLinkage() throws Exception {
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", " return [['a':1, 'b':1, 'col1':11], ['a':1, 'b':2, 'col1':12], ['a':2, 'b':1, 'col1':21]]", "groovy")
+                        .query("q2", " return [['a':2, 'b':1, 'col2':210], ['a':1, 'b':2, 'col2':120]]", "groovy", "a, b")
+                        .build()
+                ).name("report").build();
+
+        BandData rootBand = extractData(report);
+
+        List<BandData> bands = rootBand.getChildrenByName("Band1");
+        Assert.assertEquals(3, bands.size());
+        Assert.assertNull(bands.get(0).getParameterValue("col2"));
+        Assert.assertEquals(120, bands.get(1).getParameterValue("col2"));
+        Assert.assertEquals(210, bands.get(2).getParameterValue("col2"));
+    }
+
+    @Test
+    public void testMissingLinkField() throws Exception {
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", " return [['col1':1, 'link': 1], ['col1':2, 'link': 2]]", "groovy")
+                        .query("q2", " return [['col2':10, 'link': 1], ['col2':20]]", "groovy", "link")
+                        .build()
+                ).name("report").build();
+
+        try {
+            extractData(report);
+            Assert.fail();
+        } catch (DataLoadingException e) {
+            Assert.assertTrue(e.getMessage().contains("[q2]"));
+        }
+    }
+
+    private BandData extractData(Report report) {
+        BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+        rootBand.setData(new HashMap<String, Object>());
+        rootBand.setFirstLevelBandDefinitionNames(new HashSet<String>());
+
+        new DataExtractorImpl(new DefaultLoaderFactory().setGroovyDataLoader(new GroovyDataLoader(new DefaultScriptingImpl()))).extractData(report, new HashMap<String, Object>(), rootBand);
+        return rootBand;
+    }
+
     private Report createReport() throws IOException {
         ReportBuilder report = new ReportBuilder()
                 .band(new BandBuilder()
@@ -3,6 +3,17 @@ package com.haulmont.yarg.structure;
 import junit.framework.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * @author degtyarjov
  * @version $Id$
@@ -33,6 +44,7 @@ public class BandDataTest {
         BandData alsoBand14 = alsoBand1.getChildrenByName("Band14").get(0);
         Assert.assertTrue(alsoBand1 == band1);
         Assert.assertTrue(alsoBand14 == band14);
+        Assert.assertTrue(root.getChildrenBands() == root.getChildrenBands());
     }
 
     @Test
@@ -65,6 +77,165 @@ public class BandDataTest {
         Assert.assertEquals("Band3.Band34", band34.getFullName());
     }
 
+    @Test
+    public void testFindBandsAfterTreeChanges() throws Exception {
+        BandData root = createData();
+        BandData band1 = root.findBandRecursively("Band1");
+        BandData band3 = root.findBandRecursively("Band3");
+        Assert.assertNull(root.findBandRecursively("Band5"));
+        Assert.assertNull(root.findBandByPath("Band3.Band5"));
+        Assert.assertTrue(band3.findBandRecursively("Band34") == root.findBandByPath("Band3.Band34"));
+
+        BandData band5 = new BandData("Band5", band3);
+        band3.addChild(band5);
+        Assert.assertTrue(band5 == root.findBandRecursively("Band5"));
+        Assert.assertTrue(band5 == root.findBandByPath("Band3.Band5"));
+        Assert.assertTrue(band5 == band3.findBandRecursively("Band5"));
+
+        BandData anotherBand5 = new BandData("Band5", band1);
+        band1.addChild(anotherBand5);
+        Assert.assertTrue(anotherBand5 == root.findBandRecursively("Band5"));
+        Assert.assertTrue(band5 == root.findBandByPath("Band3.Band5"));
+
+        band1.getChildrenBands().remove("Band5");
+        Assert.assertTrue(band5 == root.findBandRecursively("Band5"));
+    }
+
+    @Test
+    public void testIndexesAreKeptWhenBandsAreAdded() throws Exception {
+        BandData root = createData();
+        BandData band1 = root.findBandRecursively("Band1");
+        BandData band3 = root.findBandRecursively("Band3");
+        int modCount = root.structureModCount;
+
+        Assert.assertEquals(3, root.getChildrenBands().size());
+        BandData band35 = new BandData("Band35", band3);
+        band3.addChild(band35);
+        Assert.assertTrue(band35 == root.findBandRecursively("Band35"));
+        Assert.assertTrue(band35 == root.findBandByPath("Band3.Band35"));
+
+        //band which goes before the indexed one in depth-first order
+        BandData earlierBand35 = new BandData("Band35", band1);
+        band1.addChild(earlierBand35);
+        band3.addChild(new BandData("Band35", band3));
+        Assert.assertTrue(earlierBand35 == root.findBandRecursively("Band35"));
+        Assert.assertTrue(band35 == band3.findBandRecursively("Band35"));
+
+        //children of the band are merged when the band is added to the tree
+        BandData band4 = new BandData("Band4", root);
+        BandData band41 = new BandData("Band41", band4);
+        band4.addChild(band41);
+        Assert.assertNull(root.findBandRecursively("Band41"));
+        root.addChild(band4);
+        Assert.assertTrue(band41 == root.findBandRecursively("Band41"));
+
+        Assert.assertEquals(modCount, root.structureModCount);
+        Assert.assertNotNull(root.index);
+    }
+
+    @Test
+    public void testConcurrentAdding() throws Exception {
+        final BandData root = new BandData(BandData.ROOT_BAND_NAME);
+        Assert.assertNull(root.findBandRecursively("Band1"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        final List<BandData> bands = new ArrayList<BandData>();
+        for (int i = 0; i < 4; i++) {
+            final BandData band = new BandData("Band" + i, root);
+            root.addChild(band);
+            bands.add(band);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        band.addChild(new BandData(band.getName() + "_" + j % 10, band));
+                        root.findBandRecursively(band.getName() + "_" + j % 10);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        for (BandData band : bands) {
+            for (int j = 0; j < 10; j++) {
+                String name = band.getName() + "_" + j;
+                Assert.assertEquals(100, band.getChildrenByName(name).size());
+                Assert.assertTrue(band.getChildrenByName(name).get(0) == root.findBandRecursively(name));
+            }
+        }
+    }
+
+    @Test
+    public void testCompactRows() throws Exception {
+        BandData root = createData();
+        BandRowSchema schema = root.findBandRecursively("Band11").getRowSchema("Band11");
+        Assert.assertTrue(schema == root.getRowSchema("Band11"));
+
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("name", new String("Name"));
+        data.put("value", 1);
+        data.put("empty", null);
+        Map<String, Object> row1 = schema.createRow(data);
+        data.put("name", new String("Name"));
+        Map<String, Object> row2 = schema.createRow(data);
+
+        Assert.assertEquals(data, row1);
+        Assert.assertEquals(data, row2);
+        Assert.assertEquals(3, schema.getColumnCount());
+        Assert.assertTrue(row1.get("name") == row2.get("name"));
+        Assert.assertTrue(row1.containsKey("empty"));
+        Assert.assertFalse(row1.containsKey("other"));
+
+        row1.put("other", "Other");
+        Assert.assertEquals("Other", row1.get("other"));
+        Assert.assertNull(row2.get("other"));
+        Assert.assertFalse(row2.containsKey("other"));
+        Assert.assertEquals(4, row1.size());
+        Assert.assertEquals(3, row2.size());
+
+        Assert.assertEquals(1, row1.remove("value"));
+        Iterator<String> iterator = row1.keySet().iterator();
+        Assert.assertEquals("name", iterator.next());
+        iterator.remove();
+        Assert.assertEquals(2, row1.size());
+        Assert.assertFalse(row1.containsKey("name"));
+    }
+
+    @Test
+    public void testSpillingBandsAcrossReadWindows() throws Exception {
+        BandData root = new BandData(BandData.ROOT_BAND_NAME);
+        SpillingBandList bands = new SpillingBandList("Band1", root, BandOrientation.HORIZONTAL, 0, null);
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'a');
+        String value = new String(chars);
+        for (int i = 0; i < 200; i++) {
+            BandData band = new BandData("Band1", root);
+            band.getData().put("value", i % 50 == 0 ? repeat(value, 100) : value + i);
+            bands.add(band);
+        }
+        Assert.assertEquals(200, bands.getSpilledCount());
+
+        for (int i = bands.size() - 1; i >= 0; i--) {
+            Assert.assertEquals(i % 50 == 0 ? repeat(value, 100) : value + i, bands.get(i).getParameterValue("value"));
+        }
+
+        File file = bands.file;
+        Assert.assertTrue(file.exists());
+        bands.close();
+        Assert.assertFalse(file.exists());
+    }
+
+    private String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
 
     private BandData createData() {
         BandData root = new BandData(BandData.ROOT_BAND_NAME);
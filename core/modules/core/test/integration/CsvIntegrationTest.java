@@ -4,6 +4,7 @@ import com.haulmont.yarg.formatters.ReportFormatter;
 import com.haulmont.yarg.formatters.factory.DefaultFormatterFactory;
 import com.haulmont.yarg.formatters.factory.FormatterFactoryInput;
 import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.BandDataCursor;
 import com.haulmont.yarg.structure.ReportOutputType;
 import com.haulmont.yarg.structure.impl.ReportFieldFormatImpl;
 import com.haulmont.yarg.structure.impl.ReportTemplateImpl;
@@ -16,8 +17,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.*;
 
 /**
  * @author birin
@@ -61,6 +61,48 @@ public class CsvIntegrationTest {
         Assert.assertTrue("Files are not equal", isTwoEqual);
     }
 
+    @Test
+    public void testCsvStreaming() throws Exception {
+        BandData tree = createRootCsvTree();
+        BandData root = new BandData("Root");
+        root.addReportFieldFormats(new ArrayList<>(tree.getReportFieldFormats().values()));
+        for (Map.Entry<String, List<BandData>> entry : tree.getChildrenBands().entrySet()) {
+            root.addChildrenCursor(entry.getKey(), createCursor(entry.getValue().iterator()));
+        }
+
+        FileOutputStream outputStream = new FileOutputStream("./result/integration/result-streaming.csv");
+        ReportFormatter formatter = new DefaultFormatterFactory().createFormatter(new FormatterFactoryInput("csv", root,
+                new ReportTemplateImpl("", "test.csv", "./modules/core/test/integration/test.csv", ReportOutputType.csv), outputStream));
+        formatter.renderDocument();
+
+        IOUtils.closeQuietly(outputStream);
+
+        File sample = new File("./modules/core/test/integration/ethalon.csv");
+        File result = new File("./result/integration/result-streaming.csv");
+        boolean isTwoEqual = FileUtils.contentEqualsIgnoreEOL(sample, result, null);
+
+        Assert.assertTrue("Files are not equal", isTwoEqual);
+        Assert.assertTrue("Streamed bands should not be kept in the tree", root.getChildrenList().isEmpty());
+    }
+
+    protected BandDataCursor createCursor(Iterator<BandData> iterator) {
+        return new BandDataCursor() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public BandData next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
     protected BandData createRootCsvTree() throws Exception{
         BandData root = new BandData("Root");
         BandData header = new BandData("Header", root);
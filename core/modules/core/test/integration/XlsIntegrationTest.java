@@ -21,6 +21,7 @@ import com.haulmont.yarg.formatters.factory.FormatterFactoryInput;
 import com.haulmont.yarg.structure.ReportOutputType;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.BandOrientation;
+import com.haulmont.yarg.structure.SpillingBandList;
 import com.haulmont.yarg.structure.impl.ReportTemplateImpl;
 import junit.framework.Assert;
 import org.apache.commons.io.FileUtils;
@@ -93,6 +94,50 @@ public class XlsIntegrationTest {
         compareFiles("./modules/core/test/integration/etalon-with-aggregation.xls", "./result/integration/result-with-aggregation.xls");
     }
 
+    @Test
+    public void testSpilledVerticalBands() throws Exception {
+        BandData root = new BandData("Root", null, BandOrientation.HORIZONTAL);
+        root.setData(new HashMap<String, Object>());
+        SpillingBandList bands1 = new SpillingBandList("Band1", root, BandOrientation.VERTICAL, 1, null);
+        for (int i = 1; i <= 3; i++) {
+            BandData band1 = new BandData("Band1", root, BandOrientation.VERTICAL);
+            band1.addData("col1", i);
+            band1.addData("col2", i * 10);
+            band1.addData("col3", i * 100);
+            bands1.add(band1);
+        }
+        root.addChildren(bands1);
+        root.addChild(new BandData("Footer", root, BandOrientation.HORIZONTAL));
+        Assert.assertEquals(2, bands1.getSpilledCount());
+        Assert.assertSame(bands1.get(2), bands1.get(2));
+
+        FileOutputStream outputStream = new FileOutputStream("./result/integration/result-spilled-vertical.xls");
+
+        ReportFormatter formatter = new DefaultFormatterFactory().createFormatter(new FormatterFactoryInput("xls", root,
+                new ReportTemplateImpl("", "smoketest/test.xls", "./modules/core/test/integration/test-with-formulas.xls", ReportOutputType.xls), outputStream));
+
+        formatter.renderDocument();
+
+        IOUtils.closeQuietly(outputStream);
+
+        try {
+            bands1.get(1).addData("col1", 0);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        root.releaseResources();
+
+        HSSFWorkbook result = new HSSFWorkbook(FileUtils.openInputStream(new File("./result/integration/result-spilled-vertical.xls")));
+        HSSFSheet resultSheet = result.getSheetAt(0);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i + 1.0, resultSheet.getRow(0).getCell(i * 4).getNumericCellValue());
+            Assert.assertEquals((i + 1) * 100.0, resultSheet.getRow(0).getCell(i * 4 + 2).getNumericCellValue());
+        }
+        //footer goes below the vertical bands
+        Assert.assertEquals("SUM(A1:A1)", resultSheet.getRow(1).getCell(0).getCellFormula());
+    }
+
     @Test
     public void testAggregationsEmpty() throws Exception {
         BandData root = new BandData("Root", null, BandOrientation.HORIZONTAL);
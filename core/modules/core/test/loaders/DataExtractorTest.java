@@ -15,23 +15,41 @@
  */
 package loaders;
 
+import com.haulmont.yarg.exception.DataLoadingException;
+import com.haulmont.yarg.exception.ReportCancelledException;
+import com.haulmont.yarg.exception.ReportingException;
+import com.haulmont.yarg.formatters.ReportFormatter;
+import com.haulmont.yarg.formatters.factory.DefaultFormatterFactory;
+import com.haulmont.yarg.formatters.factory.FormatterFactoryInput;
 import com.haulmont.yarg.loaders.factory.DefaultLoaderFactory;
 import com.haulmont.yarg.loaders.impl.GroovyDataLoader;
+import com.haulmont.yarg.loaders.impl.JsonDataLoader;
 import com.haulmont.yarg.reporting.DataExtractorImpl;
+import com.haulmont.yarg.reporting.ParallelDataExtractorImpl;
+import com.haulmont.yarg.reporting.RunHandle;
 import com.haulmont.yarg.structure.BandData;
+import com.haulmont.yarg.structure.BandDataCursor;
 import com.haulmont.yarg.structure.Report;
+import com.haulmont.yarg.structure.ReportQuery;
 import com.haulmont.yarg.structure.ReportOutputType;
+import com.haulmont.yarg.structure.SpillingBandList;
 import com.haulmont.yarg.structure.impl.BandBuilder;
 import com.haulmont.yarg.structure.impl.ReportBuilder;
+import com.haulmont.yarg.structure.impl.ReportTemplateImpl;
 import com.haulmont.yarg.structure.impl.ReportTemplateBuilder;
 import com.haulmont.yarg.util.groovy.DefaultScriptingImpl;
 import junit.framework.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DataExtractorTest {
     private Map<String, Object> emptyMap;
@@ -81,6 +99,421 @@ public class DataExtractorTest {
         Assert.assertEquals(1, rootBand.getChildrenList().size());
     }
 
+    @Test
+    public void testBatchLoading() throws Exception {
+        final AtomicInteger batchCalls = new AtomicInteger();
+        DefaultLoaderFactory loaderFactory = new DefaultLoaderFactory();
+        loaderFactory.setGroovyDataLoader(new GroovyDataLoader(new DefaultScriptingImpl()) {
+            @Override
+            public List<Map<String, Object>> loadBatchData(ReportQuery reportQuery, List<BandData> parentBands, Map<String, Object> params) {
+                batchCalls.incrementAndGet();
+                return super.loadBatchData(reportQuery, parentBands, params);
+            }
+        });
+
+        ReportBuilder report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Order")
+                        .query("q1", "return [['id':1], ['id':2], ['id':3]]", "groovy")
+                        .child(new BandBuilder()
+                                .name("Line")
+                                .query("q2", "return parentBands.findAll { it.data.id != 2 }" +
+                                                ".collectMany { [['orderId':it.data.id, 'line':it.data.id * 10], ['orderId':it.data.id, 'line':it.data.id * 10 + 1]] }",
+                                        "groovy", null, Collections.<String, Object>singletonMap(DataExtractorImpl.BATCH_LINK_PARAM, "id=orderId"))
+                                .build())
+                        .build()
+                );
+
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(loaderFactory);
+        dataExtractor.setPutEmptyRowIfNoDataSelected(false);
+        BandData rootBand = rootBand();
+        dataExtractor.extractData(report.build(), new HashMap<String, Object>(), rootBand);
+
+        Assert.assertEquals(1, batchCalls.get());
+        List<BandData> orders = rootBand.getChildrenByName("Order");
+        Assert.assertEquals(3, orders.size());
+
+        List<BandData> lines = orders.get(0).getChildrenByName("Line");
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals(10, lines.get(0).getParameterValue("line"));
+        Assert.assertEquals(11, lines.get(1).getParameterValue("line"));
+        Assert.assertEquals(0, orders.get(1).getChildrenByName("Line").size());
+        Assert.assertEquals(30, orders.get(2).getChildrenByName("Line").get(0).getParameterValue("line"));
+    }
+
+    @Test
+    public void testBatchSplitting() throws Exception {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        DefaultLoaderFactory loaderFactory = new DefaultLoaderFactory();
+        loaderFactory.setGroovyDataLoader(new GroovyDataLoader(new DefaultScriptingImpl()) {
+            @Override
+            public List<Map<String, Object>> loadBatchData(ReportQuery reportQuery, List<BandData> parentBands, Map<String, Object> params) {
+                batchSizes.add(parentBands.size());
+                return super.loadBatchData(reportQuery, parentBands, params);
+            }
+        });
+
+        ReportBuilder report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Order")
+                        .query("q1", "return [['id':1], ['id':2], ['id':3], ['id':1], ['id':3]]", "groovy")
+                        .child(new BandBuilder()
+                                .name("Line")
+                                .query("q2", "return parentBands.collect { it.data.id }.unique().collect { ['orderId':it, 'line':it * 10] }",
+                                        "groovy", null, Collections.<String, Object>singletonMap(DataExtractorImpl.BATCH_LINK_PARAM, "id=orderId"))
+                                .build())
+                        .build()
+                );
+
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(loaderFactory);
+        dataExtractor.setMaxBatchSize(2);
+        BandData rootBand = rootBand();
+        dataExtractor.extractData(report.build(), new HashMap<String, Object>(), rootBand);
+
+        //bands with the same link value are loaded in one batch
+        Assert.assertEquals(Arrays.asList(3, 2), batchSizes);
+        List<BandData> orders = rootBand.getChildrenByName("Order");
+        for (BandData order : orders) {
+            List<BandData> lines = order.getChildrenByName("Line");
+            Assert.assertEquals(1, lines.size());
+            Assert.assertEquals((Integer) order.getParameterValue("id") * 10, lines.get(0).getParameterValue("line"));
+        }
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        final AtomicInteger lineCalls = new AtomicInteger();
+        DefaultLoaderFactory loaderFactory = new DefaultLoaderFactory();
+        loaderFactory.setGroovyDataLoader(new GroovyDataLoader(new DefaultScriptingImpl()) {
+            @Override
+            public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+                if ("q2".equals(reportQuery.getName())) {
+                    lineCalls.incrementAndGet();
+                }
+                return super.loadData(reportQuery, parentBand, params);
+            }
+        });
+
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Order")
+                        .query("q1", "return [['id':1], ['id':2], ['id':3]]", "groovy")
+                        .child(new BandBuilder()
+                                .name("Line")
+                                .query("q2", "runHandle.cancel(); return [['line':parentBand.data.id]]", "groovy")
+                                .build())
+                        .build()
+                ).build();
+
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(loaderFactory);
+        BandData rootBand = rootBand();
+        RunHandle handle = new RunHandle();
+        rootBand.setRunHandle(handle);
+        try {
+            dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+            Assert.fail("Extraction should be cancelled");
+        } catch (ReportCancelledException e) {
+            //ok
+        }
+        Assert.assertTrue(handle.isCancelled());
+        Assert.assertEquals(1, lineCalls.get());
+        Assert.assertNull(RunHandle.current());
+
+        rootBand = rootBand();
+        rootBand.setRunHandle(new RunHandle(-1));
+        try {
+            dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+            Assert.fail("Extraction should exceed time limit");
+        } catch (ReportCancelledException e) {
+            //ok
+        }
+        Assert.assertEquals(1, lineCalls.get());
+    }
+
+    @Test
+    public void testParallelExtraction() throws Exception {
+        ReportBuilder report = new ReportBuilder();
+        for (int i = 0; i < 5; i++) {
+            report.band(new BandBuilder()
+                    .name("Band" + i)
+                    .query("q", "sleep(20); return [['value':" + i + "], ['value':" + (i * 10) + "]]", "groovy")
+                    .child(new BandBuilder().name("Child" + i + "1").query("q", "return [['value':parentBand.data.value + 1]]", "groovy").build())
+                    .child(new BandBuilder().name("Child" + i + "2").query("q", "sleep(10); return [['value':parentBand.data.value + 2]]", "groovy").build())
+                    .build());
+        }
+        Report builtReport = report.build();
+
+        BandData expected = rootBand();
+        new DataExtractorImpl(initLoaderFactory()).extractData(builtReport, new HashMap<String, Object>(), expected);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            BandData actual = rootBand();
+            new ParallelDataExtractorImpl(initLoaderFactory(), executor).extractData(builtReport, new HashMap<String, Object>(), actual);
+            Assert.assertEquals(expected.toString(), actual.toString());
+            Assert.assertEquals(expected.getFirstLevelBandDefinitionNames(), actual.getFirstLevelBandDefinitionNames());
+            Assert.assertEquals(new ArrayList<String>(expected.getChildrenBands().keySet()), new ArrayList<String>(actual.getChildrenBands().keySet()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamingExtraction() throws Exception {
+        final AtomicInteger childCalls = new AtomicInteger();
+        DefaultLoaderFactory loaderFactory = initLoaderFactory();
+        loaderFactory.registerDataLoader("counting", new GroovyDataLoader(new DefaultScriptingImpl()) {
+            @Override
+            public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+                childCalls.incrementAndGet();
+                return super.loadData(reportQuery, parentBand, params);
+            }
+        });
+
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", "return (1..5).collect { ['value':it] }", "groovy")
+                        .child(new BandBuilder().name("Band11").query("q2", "return [['value':parentBand.data.value * 10]]", "counting").build())
+                        .build())
+                .build();
+
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(loaderFactory);
+        dataExtractor.setStreamFirstLevelBands(true);
+        dataExtractor.setStreamingChunkSize(2);
+
+        BandData rootBand = rootBand();
+        dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+        Assert.assertEquals(0, childCalls.get());
+        Assert.assertTrue(rootBand.getFirstLevelBandDefinitionNames().contains("Band1"));
+
+        BandDataCursor cursor = rootBand.getChildrenCursor("Band1");
+        List<Object> values = new ArrayList<Object>();
+        while (cursor.hasNext()) {
+            BandData band = cursor.next();
+            values.add(band.getChildByName("Band11").getParameterValue("value"));
+            Assert.assertTrue(childCalls.get() <= values.size() + 1);
+        }
+        Assert.assertEquals(Arrays.<Object>asList(10, 20, 30, 40, 50), values);
+        Assert.assertTrue(rootBand.getChildrenByName("Band1").isEmpty());
+
+        rootBand = rootBand();
+        dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+        Assert.assertEquals(5, rootBand.getChildrenByName("Band1").size());
+    }
+
+    @Test
+    public void testPipelinedExtraction() throws Exception {
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", "return (1..5).collect { ['value':it] }", "groovy")
+                        .child(new BandBuilder().name("Band11").query("q2", "return [['value':parentBand.data.value * 10]]", "groovy").build())
+                        .build())
+                .band(new BandBuilder()
+                        .name("Band2")
+                        .query("q3", "return (1..3).collect { ['value':it] }", "groovy")
+                        .build())
+                .band(new BandBuilder()
+                        .name("Band3")
+                        .query("q4", "throw new RuntimeException('error')", "groovy")
+                        .build())
+                .build();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DataExtractorImpl dataExtractor = new DataExtractorImpl(initLoaderFactory());
+            dataExtractor.setPipelineExecutor(executor);
+            dataExtractor.setPipelineQueueSize(2);
+            dataExtractor.setStreamingChunkSize(1);
+
+            BandData rootBand = rootBand();
+            dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+            Assert.assertEquals(Arrays.asList("Band1", "Band2", "Band3"), new ArrayList<String>(rootBand.getChildrenBandNames()));
+
+            List<BandData> bands1 = rootBand.getChildrenByName("Band1");
+            Assert.assertEquals(5, bands1.size());
+            Assert.assertEquals(50, bands1.get(4).getChildByName("Band11").getParameterValue("value"));
+
+            BandDataCursor cursor = rootBand.getChildrenCursor("Band2");
+            List<Object> values = new ArrayList<Object>();
+            while (cursor.hasNext()) {
+                values.add(cursor.next().getParameterValue("value"));
+            }
+            Assert.assertEquals(Arrays.<Object>asList(1, 2, 3), values);
+
+            try {
+                rootBand.getChildrenByName("Band3");
+                Assert.fail();
+            } catch (DataLoadingException e) {
+                //expected
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPipelinedBandsReadOutOfOrder() throws Exception {
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", "return (1..10).collect { ['firstName':'first' + it] }", "groovy")
+                        .build())
+                .band(new BandBuilder()
+                        .name("Band2")
+                        .query("q2", "return (1..3).collect { ['firstName':'second' + it] }", "groovy")
+                        .build())
+                .build();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ExecutorService formattingExecutor = Executors.newSingleThreadExecutor();
+        try {
+            DataExtractorImpl dataExtractor = new DataExtractorImpl(initLoaderFactory());
+            dataExtractor.setPipelineExecutor(executor);
+            dataExtractor.setPipelineQueueSize(2);
+            dataExtractor.setStreamingChunkSize(1);
+
+            final BandData rootBand = rootBand();
+            dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+
+            //band which is not the first definition is read while the first one waits for the formatter
+            Future<String> result = formattingExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    BandDataCursor cursor = rootBand.getChildrenCursor("Band2");
+                    int count = 0;
+                    while (cursor.hasNext()) {
+                        Assert.assertEquals("second" + ++count, cursor.next().getParameterValue("firstName"));
+                    }
+                    Assert.assertEquals(3, count);
+
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    ReportFormatter formatter = new DefaultFormatterFactory().createFormatter(new FormatterFactoryInput("csv", rootBand,
+                            new ReportTemplateImpl("", "test.csv", "./modules/core/test/integration/test.csv", ReportOutputType.csv), outputStream));
+                    formatter.renderDocument();
+                    return outputStream.toString();
+                }
+            });
+
+            String csv = result.get(30, TimeUnit.SECONDS);
+            for (int i = 1; i <= 10; i++) {
+                Assert.assertTrue(csv.contains("first" + i));
+            }
+            Assert.assertFalse(csv.contains("second"));
+        } finally {
+            formattingExecutor.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueryResultsMemoization() throws Exception {
+        final AtomicInteger childCalls = new AtomicInteger();
+        DefaultLoaderFactory loaderFactory = initLoaderFactory();
+        loaderFactory.registerDataLoader("counting", new GroovyDataLoader(new DefaultScriptingImpl()) {
+            @Override
+            public List<Map<String, Object>> loadData(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+                childCalls.incrementAndGet();
+                return super.loadData(reportQuery, parentBand, params);
+            }
+
+            @Override
+            public Object createCacheKey(ReportQuery reportQuery, BandData parentBand, Map<String, Object> params) {
+                return Arrays.asList(reportQuery.getScript(), params.get("param1"));
+            }
+        });
+
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", "return (1..5).collect { ['value':it] }", "groovy")
+                        .child(new BandBuilder().name("Band11").query("q2", "return [['value':params.param1]]", "counting").build())
+                        .build())
+                .build();
+
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(loaderFactory);
+        dataExtractor.setMemoizeQueryResults(true);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("param1", "value1");
+
+        BandData rootBand = rootBand();
+        dataExtractor.extractData(report, params, rootBand);
+        Assert.assertEquals(1, childCalls.get());
+
+        List<BandData> bands = rootBand.getChildrenByName("Band1");
+        Assert.assertEquals(5, bands.size());
+        bands.get(0).getChildByName("Band11").getData().put("value", "changed");
+        for (int i = 1; i < bands.size(); i++) {
+            Assert.assertEquals("value1", bands.get(i).getChildByName("Band11").getParameterValue("value"));
+        }
+
+        dataExtractor.extractData(report, params, rootBand());
+        Assert.assertEquals(2, childCalls.get());
+    }
+
+    @Test
+    public void testSpillingBands() throws Exception {
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", "return (1..50).collect { ['value':it, 'name':'name' + it, 'amount':it * 1.5, 'date':new Date(it), 'empty':null] }", "groovy")
+                        .build())
+                .build();
+
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(initLoaderFactory());
+        dataExtractor.setSpillThreshold(10);
+        BandData rootBand = rootBand();
+        dataExtractor.extractData(report, new HashMap<String, Object>(), rootBand);
+
+        List<BandData> bands = rootBand.getChildrenByName("Band1");
+        Assert.assertTrue(bands instanceof SpillingBandList);
+        Assert.assertEquals(40, ((SpillingBandList) bands).getSpilledCount());
+        Assert.assertEquals(50, bands.size());
+        for (int i = 0; i < bands.size(); i++) {
+            BandData band = bands.get(i);
+            Assert.assertEquals("Band1", band.getName());
+            Assert.assertTrue(band.getParentBand() == rootBand);
+            Assert.assertEquals(i + 1, band.getParameterValue("value"));
+            Assert.assertEquals("name" + (i + 1), band.getParameterValue("name"));
+            Assert.assertEquals(new java.math.BigDecimal("1.5").multiply(new java.math.BigDecimal(i + 1)), band.getParameterValue("amount"));
+            Assert.assertEquals(new Date(i + 1), band.getParameterValue("date"));
+            Assert.assertTrue(band.getData().containsKey("empty"));
+        }
+        Assert.assertEquals(50, rootBand.findBandRecursively("Band1").getParentBand().getChildrenByName("Band1").size());
+
+        rootBand.releaseResources();
+        try {
+            bands.get(20);
+            Assert.fail();
+        } catch (ReportingException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testCompactedJsonBands() throws Exception {
+        Report report = new ReportBuilder()
+                .band(new BandBuilder()
+                        .name("Band1")
+                        .query("q1", "parameter=param1 $.books[*]", "json")
+                        .build())
+                .build();
+
+        DefaultLoaderFactory loaderFactory = initLoaderFactory();
+        loaderFactory.setJsonDataLoader(new JsonDataLoader());
+        DataExtractorImpl dataExtractor = new DataExtractorImpl(loaderFactory);
+        dataExtractor.setCompactBandData(true);
+        BandData rootBand = rootBand();
+        String json = "{\"books\": [{\"title\": \"Sword of Honour\", \"author\": {\"name\": \"Evelyn Waugh\"}}]}";
+        dataExtractor.extractData(report, Collections.<String, Object>singletonMap("param1", json), rootBand);
+
+        BandData band = rootBand.getChildByName("Band1");
+        Assert.assertEquals("Sword of Honour", band.getParameterValue("title"));
+        Assert.assertEquals("Evelyn Waugh", band.getParameterValue("author.name"));
+        Assert.assertEquals("Evelyn Waugh", band.getData().get("author.name"));
+    }
+
     private DefaultLoaderFactory initLoaderFactory() {
         DefaultLoaderFactory loaderFactory = new DefaultLoaderFactory();
         loaderFactory.setGroovyDataLoader(new GroovyDataLoader(new DefaultScriptingImpl()));
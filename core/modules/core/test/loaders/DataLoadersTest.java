@@ -1,18 +1,25 @@
 package loaders;
 
+import com.haulmont.yarg.loaders.ReportBatchDataLoader;
+import com.haulmont.yarg.loaders.factory.DefaultLoaderFactory;
+import com.haulmont.yarg.loaders.impl.CachingDataLoader;
 import com.haulmont.yarg.loaders.impl.GroovyDataLoader;
 import com.haulmont.yarg.loaders.impl.JsonDataLoader;
 import com.haulmont.yarg.loaders.impl.SqlDataLoader;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.BandOrientation;
+import com.haulmont.yarg.structure.ReportQuery;
 import com.haulmont.yarg.structure.impl.ReportQueryImpl;
 import com.haulmont.yarg.util.groovy.DefaultScriptingImpl;
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
 import junit.framework.Assert;
 import org.junit.Test;
 import utils.TestDatabase;
 
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author degtyarjov
@@ -94,6 +101,93 @@ public class DataLoadersTest {
         printResult(result);
     }
 
+    @Test
+    public void testLazyGroovyLoader() throws Exception {
+        GroovyDataLoader groovyDataLoader = new GroovyDataLoader(new DefaultScriptingImpl());
+        BandData rootBand = new BandData("band1", null, BandOrientation.HORIZONTAL);
+        rootBand.setData(Collections.<String, Object>emptyMap());
+        AtomicInteger producedRows = new AtomicInteger();
+        Map<String, Object> params = Collections.<String, Object>singletonMap("counter", producedRows);
+
+        List<Map<String, Object>> result = groovyDataLoader.loadData(
+                new ReportQueryImpl("", "def i = 0\n" +
+                        "return [hasNext: { i < 3 }, next: { params.counter.incrementAndGet(); ['a':i++] }] as Iterator", "groovy", null, null),
+                rootBand, params);
+        Assert.assertEquals(0, producedRows.get());
+        Iterator<Map<String, Object>> iterator = result.iterator();
+        Assert.assertEquals(0, iterator.next().get("a"));
+        Assert.assertEquals(1, producedRows.get());
+        Assert.assertEquals(1, iterator.next().get("a"));
+        Assert.assertEquals(2, iterator.next().get("a"));
+        Assert.assertFalse(iterator.hasNext());
+
+        result = groovyDataLoader.loadData(
+                new ReportQueryImpl("", "def pages = [[['a':1], ['a':2]], ['a':3]].iterator()\n" +
+                        "return { -> pages.hasNext() ? pages.next() : null }", "groovy", null, null),
+                rootBand, params);
+        Assert.assertFalse(result.isEmpty());
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(3, result.get(2).get("a"));
+
+        result = groovyDataLoader.loadData(
+                new ReportQueryImpl("", "return new LinkedHashSet([['a':1], ['a':2]])", "groovy", null, null),
+                rootBand, params);
+        int count = 0;
+        for (Map<String, Object> row : result) {
+            count++;
+        }
+        for (Map<String, Object> row : result) {
+            count++;
+        }
+        Assert.assertEquals(4, count);
+    }
+
+    @Test
+    public void testCachingNullResult() throws Exception {
+        CachingDataLoader cachingDataLoader = new CachingDataLoader(new GroovyDataLoader(new DefaultScriptingImpl()), 0, 10);
+        BandData rootBand = new BandData("band1", null, BandOrientation.HORIZONTAL);
+        rootBand.setData(Collections.<String, Object>emptyMap());
+        AtomicInteger calls = new AtomicInteger();
+        ReportQueryImpl query = new ReportQueryImpl("", "params.counter.incrementAndGet()\nreturn null", "groovy", null,
+                Collections.<String, Object>singletonMap(CachingDataLoader.CACHE_PARAM, true));
+
+        List<Map<String, Object>> result = cachingDataLoader.loadData(query, rootBand, Collections.<String, Object>singletonMap("counter", calls));
+        Assert.assertTrue(result.isEmpty());
+        result = cachingDataLoader.loadData(query, rootBand, Collections.<String, Object>singletonMap("counter", calls));
+        Assert.assertTrue(result.isEmpty());
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, cachingDataLoader.getHitCount());
+    }
+
+    @Test
+    public void testCachingLoaderBatchSupport() throws Exception {
+        DefaultLoaderFactory loaderFactory = new DefaultLoaderFactory()
+                .registerCachingDataLoader("json", new JsonDataLoader(), 0, 10)
+                .registerCachingDataLoader("groovy", new GroovyDataLoader(new DefaultScriptingImpl()), 0, 10);
+        //rows of the parent bands with the same link values would be loaded for each of them
+        Assert.assertFalse(loaderFactory.createDataLoader("json") instanceof ReportBatchDataLoader);
+        Assert.assertTrue(loaderFactory.createDataLoader("groovy") instanceof ReportBatchDataLoader);
+    }
+
+    @Test
+    public void testCompiledScriptsCache() throws Exception {
+        DefaultScriptingImpl scripting = new DefaultScriptingImpl();
+        String script = "return [getClass(), value * 2]";
+
+        List first = scripting.evaluateGroovy(script, new HashMap<String, Object>(Collections.singletonMap("value", 1)));
+        List second = scripting.evaluateGroovy(script, new HashMap<String, Object>(Collections.singletonMap("value", 2)));
+        Assert.assertEquals(2, first.get(1));
+        Assert.assertEquals(4, second.get(1));
+        Assert.assertSame(first.get(0), second.get(0));
+        Assert.assertEquals(1, scripting.getCompiledScriptsCount());
+
+        scripting.setCompiledScriptsCacheSize(1);
+        Assert.assertEquals(3, (int) scripting.<Integer>evaluateGroovy("return value", Collections.<String, Object>singletonMap("value", 3)));
+        Assert.assertEquals(1, scripting.getCompiledScriptsCount());
+        List third = scripting.evaluateGroovy(script, new HashMap<String, Object>(Collections.singletonMap("value", 3)));
+        Assert.assertNotSame(first.get(0), third.get(0));
+    }
+
 //    @Test todo
     public void testLinksInQueries() throws Exception {
 
@@ -162,4 +256,85 @@ public class DataLoadersTest {
         maps = jsonDataLoader.loadData(reportQuery, rootBand, params);
         Assert.assertEquals(0, maps.size());
     }
+
+    @Test
+    public void testJsonDocumentCache() throws Exception {
+        final List<DocumentContext> documents = new ArrayList<DocumentContext>();
+        JsonDataLoader jsonDataLoader = new JsonDataLoader() {
+            @Override
+            protected DocumentContext getDocument(String json, BandData parentBand) {
+                DocumentContext document = super.getDocument(json, parentBand);
+                documents.add(document);
+                return document;
+            }
+        };
+        BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+        rootBand.setData(new HashMap<String, Object>());
+        BandData band1 = new BandData("band1", rootBand);
+        band1.setData(new HashMap<String, Object>());
+
+        String json = "{\"books\": [{\"title\": \"Sword of Honour\"}, {\"title\": \"Moby Dick\"}]}";
+        ReportQueryImpl reportQuery = new ReportQueryImpl("", "parameter=param1 $.books[*]", "json", null, null);
+
+        List<Map<String, Object>> maps = jsonDataLoader.loadData(reportQuery, band1, Collections.<String, Object>singletonMap("param1", json));
+        Assert.assertEquals(2, maps.size());
+        maps.get(0).put("title", "changed");
+
+        maps = jsonDataLoader.loadData(reportQuery, band1, Collections.<String, Object>singletonMap("param1", new String(json)));
+        Assert.assertEquals("Sword of Honour", maps.get(0).get("title"));
+        Assert.assertEquals(2, documents.size());
+        Assert.assertSame(documents.get(0), documents.get(1));
+
+        rootBand.releaseResources();
+        jsonDataLoader.loadData(reportQuery, band1, Collections.<String, Object>singletonMap("param1", json));
+        Assert.assertNotSame(documents.get(0), documents.get(2));
+    }
+
+    @Test
+    public void testCompiledJsonPaths() throws Exception {
+        final List<JsonPath> paths = new ArrayList<JsonPath>();
+        JsonDataLoader jsonDataLoader = new JsonDataLoader() {
+            @Override
+            protected JsonPath getJsonPath(ReportQuery reportQuery, CompiledScript compiledScript, Map<String, Object> currentParams) {
+                JsonPath jsonPath = super.getJsonPath(reportQuery, compiledScript, currentParams);
+                paths.add(jsonPath);
+                return jsonPath;
+            }
+        };
+        BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+        rootBand.setData(new HashMap<String, Object>());
+
+        String json = "{\"books\": [{\"title\": \"Sword of Honour\", \"category\": \"fiction\"}, " +
+                "{\"title\": \"Sayings of the Century\", \"category\": \"reference\"}]}";
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("param1", json);
+        params.put("category", "fiction");
+        params.put("title", "Sword of Honour");
+
+        ReportQueryImpl reportQuery = new ReportQueryImpl("", "parameter=param1 $.books[*]", "json", null, null);
+        jsonDataLoader.loadData(reportQuery, rootBand, params);
+        jsonDataLoader.loadData(reportQuery, rootBand, params);
+        Assert.assertSame(paths.get(0), paths.get(1));
+
+        reportQuery = new ReportQueryImpl("", "parameter=param1 $.books[?(@.category=='${category}' && @.title=='${title}')]", "json", null, null);
+        List<Map<String, Object>> maps = jsonDataLoader.loadData(reportQuery, rootBand, params);
+        Assert.assertEquals(1, maps.size());
+        Assert.assertEquals("Sword of Honour", maps.get(0).get("title"));
+        jsonDataLoader.loadData(reportQuery, rootBand, params);
+        Assert.assertSame(paths.get(2), paths.get(3));
+
+        params.put("category", "reference");
+        params.put("title", "Sayings of the Century");
+        maps = jsonDataLoader.loadData(reportQuery, rootBand, params);
+        Assert.assertEquals("Sayings of the Century", maps.get(0).get("title"));
+        Assert.assertNotSame(paths.get(3), paths.get(4));
+
+        //values can not end the quoted string of the path
+        params.put("param1", "{\"books\": [{\"title\": \"It's \\\\ Me\"}, {\"title\": \"It\"}]}");
+        params.put("title", "It's \\ Me");
+        maps = jsonDataLoader.loadData(new ReportQueryImpl("", "parameter=param1 $.books[?(@.title=='${title}')]", "json", null, null),
+                rootBand, params);
+        Assert.assertEquals(1, maps.size());
+        Assert.assertEquals("It's \\ Me", maps.get(0).get("title"));
+    }
 }
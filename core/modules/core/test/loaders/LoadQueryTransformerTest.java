@@ -13,11 +13,13 @@ package loaders;
 import com.haulmont.yarg.loaders.impl.AbstractDbDataLoader;
 import com.haulmont.yarg.structure.BandData;
 import com.haulmont.yarg.structure.ReportQuery;
+import com.haulmont.yarg.util.db.ArrayParameter;
 import junit.framework.Assert;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -155,6 +157,70 @@ public class LoadQueryTransformerTest extends AbstractDbDataLoader {
         Assert.assertEquals("param2", queryPack.getParams()[2].getValue());
     }
 
+    @Test
+    public void testCompiledQueryReuse() throws Exception {
+        String query = "select id from user where id in (${param1}) and  login = ${param2} and id > ${param1}";
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("param1", Arrays.asList(1, 2));
+        params.put("param2", "login");
+        AbstractDbDataLoader.QueryPack queryPack = prepareQuery(query, new BandData(""), params);
+        Assert.assertEquals("select id from user where id in (?,?) and login = ? and id > (?,?)", queryPack.getQuery());
+        Assert.assertEquals(3, queryPack.getParams().length);
+
+        params.put("param1", Arrays.asList(1, 2, 3));
+        queryPack = prepareQuery(query, new BandData(""), params);
+        Assert.assertEquals("select id from user where id in (?,?,?) and login = ? and id > (?,?,?)", queryPack.getQuery());
+
+        params.put("param1", 1);
+        params.put("param2", null);
+        queryPack = prepareQuery(query, new BandData(""), params);
+        Assert.assertEquals("select id from user where id in (?) and 1=1 and id > ?", queryPack.getQuery());
+        Assert.assertEquals(2, queryPack.getParams().length);
+        Assert.assertEquals(2, (int) queryPack.getParams()[1].getPosition());
+
+        Assert.assertEquals(1, compiledQueries.size());
+    }
+
+    @Test
+    public void testQueryTemplateCache() throws Exception {
+        String query = "select id from user where login = ?<% if (Band1.active) { %> and active = true<% } %>";
+        BandData rootBand = new BandData(BandData.ROOT_BAND_NAME);
+        BandData band1 = new BandData("Band1", rootBand);
+        band1.setData(new HashMap<String, Object>(Collections.singletonMap("active", true)));
+
+        Assert.assertEquals("select id from user where login = ? and active = true",
+                processQueryTemplate(query, band1, Collections.<String, Object>emptyMap()));
+        band1.getData().put("active", false);
+        Assert.assertEquals("select id from user where login = ?",
+                processQueryTemplate(query, band1, Collections.<String, Object>emptyMap()));
+        Assert.assertEquals(1, queryTemplates.size());
+    }
+
+    @Test
+    public void testArrayParameter() throws Exception {
+        String query = "select id from user where id in ${param1} and login in (${param2})";
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put("param1", Arrays.asList(1, 2));
+        params.put("param2", Arrays.asList("login1", "login2", "login3"));
+        setArrayParameterSql(HSQLDB_ARRAY_PARAMETER_SQL);
+        try {
+            AbstractDbDataLoader.QueryPack queryPack = prepareQuery(query, new BandData(""), params);
+            Assert.assertEquals("select id from user where id in (UNNEST(?)) and login in (UNNEST(?))", queryPack.getQuery());
+            Assert.assertEquals(new ArrayParameter("INTEGER", new Object[]{1, 2}), queryPack.getParams()[0].getValue());
+            Assert.assertEquals(new ArrayParameter("VARCHAR", new Object[]{"login1", "login2", "login3"}), queryPack.getParams()[1].getValue());
+
+            params.put("param1", Arrays.asList(1, 2, 3));
+            Assert.assertEquals(queryPack.getQuery(), prepareQuery(query, new BandData(""), params).getQuery());
+
+            params.put("param1", Arrays.asList(1, "2"));
+            queryPack = prepareQuery(query, new BandData(""), params);
+            Assert.assertEquals("select id from user where id in (?,?) and login in (UNNEST(?))", queryPack.getQuery());
+            Assert.assertEquals(Arrays.asList(1, "2"), queryPack.getParams()[0].getMultipleValues());
+        } finally {
+            setArrayParameterSql(null);
+        }
+    }
+
     @Test
     public void testParamsReplacing() throws Exception {
         String query = " where id=${param1} and id = ${param2}";